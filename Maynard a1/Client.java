@@ -7,22 +7,73 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A client class to allow the user to interact with the profiles
+ *
+ * The profile list, its profiles, the log and the name index can all be used by several
+ * sessions at once. Sessions name profiles by their place from the bottom of the list, which
+ * other sessions' creates don't move. Changes only lock the profiles they change; saving
+ * locks out changes while the snapshot is written, so it matches the log's sequence number.
  * @author Lenny Maynard
  */
 public class Client{
-    static SimpleStack<Profile> data;
+    static SimpleStackInterface<Profile> data;
     static Scanner scan;
+    static OperationLog log;                 //changes since the last save, null if it couldn't be opened
+    static String saveFile;
+    static final ReentrantReadWriteLock saving = new ReentrantReadWriteLock();    //changes share it, saves take it alone
+    static final int COMPACT_EVERY = 1000;   //logged changes before they are folded into a new save
+    static final int LIST_LIMIT = 50;        //longer lists aren't printed before every choice
 
     public static void main(String[] args){
+        if(args.length >= 1 && args[0].equals("-t")){
+            System.err.println("Each check prints Passed or FAILED");
+            testCacheStaleness();
+            testSnapshotMigration();
+            testLogReplay();
+            testConcurrentIndex();
+            testFollowerCounts(new ProfileRegistry(), "objects");
+            testFollowerCounts(new ProfileGraph(), "-compact");
+            testCompactAgrees();
+            testLazySave();
+            return;
+        }
         scan   = new Scanner(System.in);
-        data = new SimpleStack<Profile>();
+        data = new ProfileRegistry();                     //grows as profiles are created
         String fileName = "save.bin";
+        saveFile = fileName;
+        boolean lazy = false;
+        boolean compact = false;
+        boolean stats = false;
+        int syncEvery = 1;
+        for(int i = 0; i < args.length; i++){
+            if(args[i].equals("-lazy")) lazy = true;                                //read profiles only when they are used
+            else if(args[i].equals("-compact")) compact = true;                     //keep follows as int arrays
+            else if(args[i].equals("-stats")) stats = true;                         //print cache counters on quit
+            else if(args[i].equals("-sync")){                                       //changes to group per disk sync
+                try {
+                    syncEvery = i + 1 < args.length ? Integer.parseInt(args[++i]) : 0;
+                }
+                catch(NumberFormatException e) {
+                    syncEvery = 0;
+                }
+                if(syncEvery < 1){
+                    System.out.println("Usage: -sync <changes per disk sync>, at least 1");
+                    return;
+                }
+            }
+        }
 
-        restore(fileName);                       //attempts to restore data from a file
+        if(compact) restoreGraph(fileName);
+        else if(!lazy || !open(fileName)) restore(fileName);     //attempts to restore data from a file
+        if(!openLog(fileName, syncEvery)) return;           //replays changes made after that save
 
         boolean exit = false;
         while(exit ==false){
@@ -47,9 +98,22 @@ public class Client{
                     break;
                 case 8: exit = true;
                     break;
+                case 9: find();
+                    break;
+                case 10: popular();
+                    break;
             }
         }
         save(fileName);       //attempts to save data to a file
+        if(log != null){
+            try {
+                log.close();
+            }
+            catch(IOException e) {
+                logError(e);
+            }
+        }
+        if(stats) System.err.println(RecommendationCache.shared);      //how often suggestions came from the cache
 
 
     }
@@ -67,6 +131,8 @@ public class Client{
         System.out.println("6. Unfollow");
         System.out.println("7. Suggest a follow");
         System.out.println("8. Quit");
+        System.out.println("9. Find profiles by name");
+        System.out.println("10. Most followed profiles");
     }
 
     /**
@@ -74,9 +140,8 @@ public class Client{
      */
     public static void list(){
         System.out.println("Profiles: ");
-        Object[] people = data.topItems(data.size());         //gets array of profiles in data
         for(int i = 0; i<data.size(); i++){
-            Profile temp = (Profile) people[i];                   //cycle through each profile in  array and print name
+            Profile temp = data.get(i);                           //cycle through each profile in data and print name
             System.out.println("\t"+(i+1)+". "+temp.getName());
         }
     }
@@ -90,8 +155,38 @@ public class Client{
         String name = scan.nextLine();
         System.out.print("Enter your \"about me\": ");
         String about = scan.nextLine();
+        return create(name, about);
+    }
+
+    /**
+     * Adds a new profile to the top of the list, logging it and indexing its name
+     * @param name The profile's name
+     * @param about The profile's about me
+     * @return true if the profile was created, false if it wasn't
+     */
+    static boolean create(String name, String about){
         Profile person = new Profile(name, about);        //add new profile to data with given name and about me
-        return data.add(person);
+        int place;
+        saving.readLock().lock();
+        try {
+            synchronized(data){                           //log creates in the order they get their places
+                if(data.isFull()) return false;
+                place = data.size();
+                try {
+                    if(log != null) log.create(name, about);      //before other sessions can see it and follow it
+                }
+                catch(IOException e) {
+                    logError(e);
+                }
+                data.add(person);
+            }
+            if(ProfileIndex.shared != null) ProfileIndex.shared.added(data.atPlace(place), place);      //a graph lists its own copy
+        }
+        finally {
+            saving.readLock().unlock();
+        }
+        logged();
+        return true;
     }
 
     /**
@@ -99,11 +194,8 @@ public class Client{
      * and 3 most recent follows
      */
     public static void show(){
-        list();
-        System.out.print("Choose a profile: ");             //user selects a profile from printed list() method
-        int select = scan.nextInt();
-        Object[] people = data.topItems(data.size());
-        Profile chosen = (Profile)people[select-1];         //take profile from entry in Object[] to a Profile
+        int place = choose("Choose a profile: ");           //user selects a profile by number or name
+        Profile chosen = data.atPlace(place);        //get the chosen profile straight from data
         System.out.println(chosen.getName());                 //get and print profile's name, about me
         System.out.println("About Me:\n"+chosen.getAbout());
         System.out.println("Recently followed: ");
@@ -112,88 +204,326 @@ public class Client{
         for(int i =0; i < 3;i++){                            //cycle through recently followed and print names
             if(top[i] != null) System.out.println("\t"+top[i].getName());
         }
+        System.out.println("Followers: " + chosen.followerCount());
+        int shown = 0;
+        for(ProfileInterface fan : chosen.followers()){      //a few of them, in no particular order
+            if(shown++ == 3) break;
+            System.out.println("\t"+fan.getName());
+        }
+    }
+
+    /**
+     * Lists the profiles with the most followers. Follower counts are kept by each profile,
+     * so this reads one number per profile and keeps the best few in a small heap.
+     */
+    public static void popular(){
+        final int howMany = 10;
+        PriorityQueue<Long> best = new PriorityQueue<Long>(howMany + 1);     //fewest followers on top
+        int size = data.size();
+        for(int place = 0; place < size; place++){
+            int count = data.atPlace(place).followerCount();
+            if(count == 0) continue;
+            best.add(((long) count << 32) | place);          //the count as it was, so later follows can't upset the heap
+            if(best.size() > howMany) best.poll();
+        }
+        if(best.isEmpty()) System.out.println("Nobody has any followers yet");
+        List<Long> ranked = new ArrayList<Long>(best);
+        Collections.sort(ranked, Collections.reverseOrder());
+        for(long entry : ranked){
+            Profile p = data.atPlace((int) entry);
+            System.out.println("\t" + p.getName() + " (" + (entry >>> 32) + " followers)");
+        }
     }
 
     /**
      * Choose a profile and edit its name and about me blurb
      */
     public static void edit(){
-        list();
-        System.out.print("Choose a profile: ");            //user selects a profile from printed list() method
-        int select = scan.nextInt();
-        scan.nextLine();
-        Object[] people = data.topItems(data.size());
-        Profile chosen = (Profile) people[select-1];
+        int place = choose("Choose a profile: ");          //user selects a profile by number or name
+        Profile chosen = data.atPlace(place);
         System.out.print("New name: ");                   //user sets new name and about me
-        chosen.setName(scan.nextLine());
+        String name = scan.nextLine();
         System.out.print("New \"about me\" : ");
-        chosen.setAbout(scan.nextLine());
+        String about = scan.nextLine();
+        saving.readLock().lock();
+        try {
+            synchronized(chosen){                         //log edits of a profile in the order they happen
+                chosen.setName(name);
+                chosen.setAbout(about);
+                if(log != null) log.edit(place, name, about);
+            }
+        }
+        catch(IOException e) {
+            logError(e);
+        }
+        finally {
+            saving.readLock().unlock();
+        }
+        logged();
     }
 
     /**
      * Choose one profile to follow another profile
      */
     public static void follow(){
-        list();
-        System.out.print("Choose a profile: ");               //user selects a profile from printed list() method
-        int select = scan.nextInt();
-        Object[] people = data.topItems(data.size());
-        Profile follower = (Profile) people[select - 1];
-        System.out.print("Choose a profile to follow: ");     //user selects profile to be followed
-        select = scan.nextInt();
-        Profile followed = (Profile)people[select-1];
-        follower.follow(followed);                       //first profile follows second profile
+        int first = choose("Choose a profile: ");             //user selects a profile by number or name
+        Profile follower = data.atPlace(first);
+        int second = choose("Choose a profile to follow: ");  //user selects profile to be followed
+        Profile followed = data.atPlace(second);
+        saving.readLock().lock();
+        try {
+            synchronized(follower){                          //log follows and unfollows in the order they happen
+                if(!follower.follow(followed)) return;       //first profile follows second profile
+                if(log != null) log.follow(first, second);
+            }
+        }
+        catch(IOException e) {
+            logError(e);
+        }
+        finally {
+            saving.readLock().unlock();
+        }
+        logged();
     }
 
     /**
      * Choose a profile and unfollow their most recent follow
      */
     public static void unfollow(){
-        list();
-        System.out.print("Who should unfollow their last person: ");    //user selects a profile from printed list() method
-        int select = scan.nextInt();
-        Object[] people = data.topItems(data.size());
-        Profile rid = (Profile)people[select-1];
-        rid.unfollow();                       //that profile removes their last follow
+        int place = choose("Who should unfollow their last person: ");     //user selects a profile by number or name
+        Profile rid = data.atPlace(place);
+        saving.readLock().lock();
+        try {
+            synchronized(rid){
+                if(rid.unfollow() == null) return;    //that profile removes their last follow
+                if(log != null) log.unfollow(place);
+            }
+        }
+        catch(IOException e) {
+            logError(e);
+        }
+        finally {
+            saving.readLock().unlock();
+        }
+        logged();
+    }
+
+    /**
+     * Lists the profiles whose names start with what the user types, with their numbers
+     */
+    public static void find(){
+        System.out.print("Name or start of a name: ");
+        String prefix = scan.nextLine().trim();
+        if(prefix.isEmpty()){
+            System.out.println("Nothing to look for");
+            return;
+        }
+        printMatches(prefix);
+    }
+
+    /**
+     * Prints up to 20 profiles whose names start with some text, with their list() numbers
+     * @param prefix The start of the name
+     */
+    static void printMatches(String prefix){
+        List<Integer> places = index().findPrefix(prefix, 20);
+        if(places.isEmpty()) System.out.println("No profile names start with \"" + prefix + "\"");
+        for(int place : places){
+            System.out.println("\t" + (data.size() - place) + ". " + index().profile(place).getName());
+        }
+        int more = index().countPrefix(prefix) - places.size();
+        if(more > 0) System.out.println("\t...and " + more + " more");
+    }
+
+    /**
+     * Asks the user to pick a profile, by its number in list() or by name. Short lists are
+     * printed first; long ones aren't, and the user can type the start of a name instead. A
+     * name that matches several profiles lists them and asks again.
+     * @param prompt What to ask
+     * @return The chosen profile's place counting from the bottom of the list
+     */
+    static int choose(String prompt){
+        if(data.size() <= LIST_LIMIT) list();
+        else System.out.println(data.size() + " profiles, enter a number or a name");
+        while(true){
+            System.out.print(prompt);
+            String answer = scan.nextLine().trim();
+            if(answer.isEmpty()){
+                System.out.println("Enter a number or a name");
+                continue;
+            }
+            if(answer.chars().allMatch(Character::isDigit)){
+                int select = Integer.parseInt(answer);
+                int size = data.size();
+                if(select >= 1 && select <= size) return size - select;
+                System.out.println("There is no profile " + select);
+                continue;
+            }
+            List<Integer> exact = index().find(answer);
+            if(exact.size() == 1) return exact.get(0);
+            if(exact.isEmpty() && index().countPrefix(answer) == 1) return index().findPrefix(answer, 1).get(0);
+            printMatches(answer);                   //none or several, so show what there is
+        }
+    }
+
+    /**
+     * Gets the name index, building it the first time a name is searched for. It is built
+     * holding the save lock alone, so no create or edit can land between the profiles it
+     * reads and its publishing; those made after it see it and keep it up to date.
+     * @return The index
+     */
+    static ProfileIndex index(){
+        ProfileIndex index = ProfileIndex.shared;
+        if(index != null) return index;
+        saving.writeLock().lock();
+        try {
+            if(ProfileIndex.shared == null) ProfileIndex.shared = new ProfileIndex(data);      //another session may have built it while this one waited
+            return ProfileIndex.shared;
+        }
+        finally {
+            saving.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Folds the log into a new save once it holds enough changes, so restoring never has
+     * too many to replay
+     */
+    static void logged(){
+        if(log == null || log.records() < COMPACT_EVERY) return;
+        saving.writeLock().lock();
+        try {
+            if(log.records() >= COMPACT_EVERY) save(saveFile);     //another session may have just saved
+        } finally {
+            saving.writeLock().unlock();
+        }
+    }
+
+    static void logError(IOException e){
+        System.err.println("Something went wrong writing to the change log");
+        e.printStackTrace();
+    }
+
+    /**
+     * Opens the change log next to a save and replays the changes made after the save. If the
+     * log can't be opened or replayed the client must not go on: the changes in memory would
+     * be half applied, and a save made without the log would replay the log again next time.
+     * @param fileName The filename of the save
+     * @param syncEvery The most changes to hold before syncing them to disk
+     * @return true if the log is open and replayed, false if the client should stop
+     */
+    public static boolean openLog(String fileName, int syncEvery){
+        try {
+            log = new OperationLog(fileName + ".log", syncEvery, 1000);
+            long after = Files.exists(Paths.get(fileName)) ? SnapshotFormat.sequence(fileName) : 0;
+            int replayed = log.replay(data, after);
+            if(replayed > 0) System.err.println("Replayed " + replayed + " changes from " + fileName + ".log");
+            return true;
+        }
+        catch(IOException e) {
+            System.err.println("Error reading the change log " + fileName + ".log: " + e.getMessage());
+            System.err.println("Nothing was saved. Repair or move the log and start again.");
+            return false;
+        }
     }
 
     /**
-     * Choose a profile and recommend a follow based on a mutual friend
+     * Choose a profile and recommend up to three follows based on mutual friends
      */
     public static void suggest(){
-        list();                                                //user selects a profile from printed list() method
-        System.out.print("Choose a profile to make a recommendation for: ");
-        int select = scan.nextInt();
-        Object[] people = data.topItems(data.size());
-        Profile person = (Profile)people[select-1];
-        Profile rec = (Profile)person.recommend();         //execute recommend() method for that profile
-        System.out.println(rec.getName());                 //print name of recommended profile
+        int place = choose("Choose a profile to make a recommendation for: ");    //user selects a profile by number or name
+        Profile person = data.atPlace(place);
+        List<ProfileInterface> recs = person.recommend(3, 3);     //best three, counting friends of friends of friends
+        if(recs.isEmpty()) System.out.println("No profiles to suggest");
+        for(ProfileInterface rec : recs){                  //print names of recommended profiles
+            System.out.println("\t"+rec.getName());
+        }
     }
 
     /**
-     * Attempts to save the data object to a file
+     * Attempts to save the data object to a file. The snapshot is written next to the file
+     * and then moved over it, so a failed save leaves the last one in place. The change log
+     * is emptied once the new save is in place. Changes wait until the save is done.
      * @param fileName The filename of the save
      */
     public static void save(String fileName){
+        saving.writeLock().lock();
         try {
-            ObjectOutputStream saveStream = new ObjectOutputStream(new FileOutputStream(fileName));
-            saveStream.writeObject(data);              //save data to file
+            Path temp = Paths.get(fileName + ".tmp");
+            SnapshotFormat.write(data, temp.toString(), log == null ? 0 : log.sequence());     //save data to file
+            Files.move(temp, Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if(log != null) log.truncate();            //the save now holds every logged change
         }
         catch(IOException e) {                         //catch exception
             System.err.println("Something went wrong saving to " + fileName);
             e.printStackTrace();
         }
+        finally {
+            saving.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Attempts to open a previous save without reading it, so each profile is read from the
+     * file the first time it is used
+     * @param filename The filename of the save
+     * @return true on success, false if the save has to be restored the normal way
+     */
+    public static boolean open(String filename) {
+        try {
+            data = new MappedProfileStore(filename);
+            return true;
+        }
+        catch(IOException e) {                       //missing, or an older format that restore converts
+            return false;
+        }
+    }
+
+    /**
+     * Restores a previous save into a ProfileGraph, which keeps every follow as a pair of ints
+     * instead of object references. An older save is converted by restore first.
+     * @param filename The filename of the save
+     * @return true on success, false if there was nothing to restore
+     */
+    public static boolean restoreGraph(String filename) {
+        boolean restored = true;
+        try {
+            if(!Files.exists(Paths.get(filename)) || !SnapshotFormat.isSnapshot(filename)) restored = restore(filename);
+            data = Files.exists(Paths.get(filename)) ? SnapshotFormat.readGraph(filename) : new ProfileGraph();
+        }
+        catch(IOException e) {
+            System.err.println("Error resuming from " + filename);
+            data = new ProfileGraph();
+            return false;
+        }
+        return restored;
     }
 
     /**
-     * Attempts to restore from a previous save
+     * Attempts to restore from a previous save. A save made with Java serialization by an
+     * older version is read the old way once, kept as filename.old, and rewritten as a
+     * snapshot.
      * @param filename The filename of the save
      * @return true on success, false on failure
      */
     public static boolean restore(String filename) {
         try {
+            if(SnapshotFormat.isSnapshot(filename)){
+                data = SnapshotFormat.read(filename);                      //restore data from file
+                return true;
+            }
             ObjectInputStream restoreStream = new ObjectInputStream(new FileInputStream(filename));
-            data = (SimpleStack<Profile>)restoreStream.readObject();       //restore data from file
+            SimpleStack<Profile> old;
+            try {
+                old = (SimpleStack<Profile>)restoreStream.readObject();    //restore data from an older save
+            } finally {
+                restoreStream.close();
+            }
+            old.setGrowable(true);                                       //older saves were capped at 10 profiles
+            data = new ProfileRegistry(old);
+            Files.copy(Paths.get(filename), Paths.get(filename + ".old"), StandardCopyOption.REPLACE_EXISTING);
+            save(filename);
+            System.err.println("Converted " + filename + " to the snapshot format, the old save is in " + filename + ".old");
         }
         catch(FileNotFoundException e) {                             //catch exceptions
             System.err.println(filename + " does not exist.");
@@ -210,4 +540,428 @@ public class Client{
         return true;
     }
 
+
+    /**
+     * Prints whether one self-test check passed
+     * @param what What was checked
+     * @param passed Whether it held
+     */
+    static void check(String what, boolean passed){
+        System.err.println((passed ? "Passed:\t" : "FAILED:\t") + what);
+    }
+
+    /**
+     * Names a list of profiles, for comparing recommendations
+     */
+    static List<String> names(List<ProfileInterface> people){
+        List<String> names = new ArrayList<String>();
+        for(ProfileInterface p : people) names.add(p.getName());
+        return names;
+    }
+
+    /**
+     * Tests that a cached recommendation matches a fresh one for a profile
+     * @param p The profile asking
+     * @param hops 2 or 3
+     * @param when What just changed
+     */
+    static void testCacheUnit(Profile p, int hops, String when){
+        List<ProfileInterface> cached = p.recommend(3, hops);
+        List<ProfileInterface> fresh = FriendRecommender.recommend(p, 3, hops, null);
+        check(p.getName() + " " + hops + " hops " + when + ": " + names(cached), names(cached).equals(names(fresh)));
+    }
+
+    /**
+     * Tests that follows and unfollows anywhere a recommendation read drop it from the cache,
+     * asking once so it is cached before each change
+     */
+    public static void testCacheStaleness(){
+        System.err.println("Testing RecommendationCache");
+        Profile a = new Profile("A", ""), b = new Profile("B", ""), c = new Profile("C", ""),
+                d = new Profile("D", ""), e = new Profile("E", "");
+        a.follow(b);
+        b.follow(c);
+        testCacheUnit(a, 2, "to start");
+        b.follow(d);                                      //a friend's follow
+        testCacheUnit(a, 2, "after B follows D");
+        testCacheUnit(a, 3, "to start");
+        c.follow(e);                                      //a friend of a friend's follow, read only with 3 hops
+        testCacheUnit(a, 3, "after C follows E");
+        a.follow(c);                                      //its own follow
+        testCacheUnit(a, 2, "after A follows C");
+        b.unfollow();                                     //drops B's follow of D
+        testCacheUnit(a, 2, "after B unfollows D");
+        a.unfollow();
+        testCacheUnit(a, 3, "after A unfollows C");
+        a.unfollow();                                     //A follows nobody now
+        testCacheUnit(a, 2, "after A unfollows B");
+    }
+
+    /**
+     * Describes every profile on a list by name, follows newest first, and follower count,
+     * so two lists can be compared whatever backend holds them
+     */
+    static String describe(SimpleStackInterface<Profile> list){
+        StringBuilder out = new StringBuilder();
+        for(int place = 0; place < list.size(); place++){
+            Profile p = list.atPlace(place);
+            out.append(p.getName()).append(" follows");
+            for(ProfileInterface other : p.followingView()) out.append(' ').append(other.getName());
+            out.append(", ").append(p.followerCount()).append(" followers; ");
+        }
+        return out.toString();
+    }
+
+    /**
+     * Tests that a save made with Java serialization, before snapshots, is converted to a
+     * snapshot that reads back the same through every backend. Dana isn't listed and is only
+     * kept because Crissy follows that profile, except by -compact, which lists it.
+     */
+    public static void testSnapshotMigration(){
+        System.err.println("Testing SnapshotFormat");
+        try {
+            Path file = Files.createTempFile("profiles", ".bin");
+            Path old = Paths.get(file + ".old");
+            try {
+                SimpleStack<Profile> saved = new SimpleStack<Profile>();
+                Profile alex = new Profile("Alex", ""), bart = new Profile("Bart", ""),
+                        crissy = new Profile("Crissy", ""), dana = new Profile("Dana", "");
+                alex.follow(bart);
+                alex.follow(crissy);
+                bart.follow(crissy);
+                crissy.follow(alex);
+                crissy.follow(dana);
+                saved.add(alex);
+                saved.add(bart);
+                saved.add(crissy);
+                ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file.toString()));
+                try {
+                    out.writeObject(saved);
+                } finally {
+                    out.close();
+                }
+                log = null;
+                String expected = "Alex follows Crissy Bart, 1 followers; Bart follows Crissy, 1 followers; "
+                        + "Crissy follows Dana Alex, 2 followers; ";
+                check("a serialized save restores", restore(file.toString()) && describe(data).equals(expected));
+                check("it is rewritten as a snapshot", SnapshotFormat.isSnapshot(file.toString()) && Files.exists(old));
+                check("plain restore matches", describe(SnapshotFormat.read(file.toString())).equals(expected));
+                check("-lazy restore matches", describe(new MappedProfileStore(file.toString())).equals(expected));
+                String listedToo = expected + "Dana follows, 1 followers; ";        //a graph lists everyone it holds
+                check("-compact restore matches", describe(SnapshotFormat.readGraph(file.toString())).equals(listedToo));
+            } finally {
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(old);
+            }
+        }
+        catch(IOException e) {
+            check("saves convert and restore: " + e, false);
+        }
+    }
+
+    /**
+     * Replays a log into a new list, as restoring with no snapshot does
+     * @return The replayed list
+     */
+    static SimpleStackInterface<Profile> replayed(Path file) throws IOException {
+        SimpleStackInterface<Profile> list = new ProfileRegistry();
+        OperationLog replaying = new OperationLog(file.toString(), 1, 0);
+        try {
+            replaying.replay(list, 0);
+        } finally {
+            replaying.close();
+        }
+        return list;
+    }
+
+    /**
+     * Tests that a log replays every complete record and drops what a crash left behind: a
+     * record cut short, then a whole record whose bytes were changed. Records added after the
+     * bad tail is dropped replay too, and a snapshot's sequence number skips the ones it holds.
+     */
+    public static void testLogReplay(){
+        System.err.println("Testing OperationLog");
+        try {
+            Path file = Files.createTempFile("profiles", ".log");
+            try {
+                OperationLog writing = new OperationLog(file.toString(), 1, 0);
+                writing.create("Alex", "");
+                writing.create("Bart", "");
+                writing.follow(0, 1);
+                writing.edit(1, "Bartholomew", "b");
+                writing.close();
+                long good = Files.size(file);
+                String expected = "Alex follows Bartholomew, 0 followers; Bartholomew follows, 1 followers; ";
+
+                Files.write(file, new byte[] {0, 0, 0, 40, 1, 2, 3}, java.nio.file.StandardOpenOption.APPEND);    //length and half a CRC
+                check("replays past a record cut short", describe(replayed(file)).equals(expected));
+                check("drops the record cut short", Files.size(file) == good);
+
+                writing = new OperationLog(file.toString(), 1, 0);
+                writing.replay(new ProfileRegistry(), 0);         //finds where the next record goes
+                writing.follow(1, 0);
+                writing.close();
+                byte[] bytes = Files.readAllBytes(file);
+                bytes[bytes.length - 1] ^= 1;                     //a torn write
+                Files.write(file, bytes);
+                check("replays past a record that fails its CRC", describe(replayed(file)).equals(expected));
+                check("drops the record that fails its CRC", Files.size(file) == good);
+
+                writing = new OperationLog(file.toString(), 1, 0);
+                writing.replay(new ProfileRegistry(), 0);
+                writing.unfollow(0);
+                writing.close();
+                check("replays records added after the bad tail", describe(replayed(file)).equals(
+                        "Alex follows, 0 followers; Bartholomew follows, 0 followers; "));
+
+                SimpleStackInterface<Profile> saved = new ProfileRegistry();      //a snapshot taken at record 2
+                saved.add(new Profile("Alex", ""));
+                saved.add(new Profile("Bart", ""));
+                writing = new OperationLog(file.toString(), 1, 0);
+                int applied = writing.replay(saved, 2);
+                writing.close();
+                check("replays only the " + applied + " records after a snapshot", applied == 3
+                        && describe(saved).equals("Alex follows, 0 followers; Bartholomew follows, 0 followers; "));
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+        catch(IOException e) {
+            check("the log writes and replays: " + e, false);
+        }
+    }
+
+    /**
+     * Tests that the name index ends up with every profile exactly once when sessions create
+     * profiles while others ask for the index for the first time, and that they all get the
+     * same index
+     */
+    public static void testConcurrentIndex(){
+        System.err.println("Testing ProfileIndex");
+        data = new ProfileRegistry();
+        log = null;
+        ProfileIndex.shared = null;
+        for(int x = 0; x < 2000; x++) data.add(new Profile("before " + x, ""));
+        final int creators = 4, searchers = 4, each = 500;
+        Set<ProfileIndex> seen = Collections.newSetFromMap(new java.util.concurrent.ConcurrentHashMap<ProfileIndex, Boolean>());
+        java.util.concurrent.CountDownLatch go = new java.util.concurrent.CountDownLatch(1);
+        List<Thread> sessions = new ArrayList<Thread>();
+        for(int t = 0; t < creators + searchers; t++){
+            final int session = t;
+            sessions.add(new Thread(() -> {
+                try {
+                    go.await();
+                } catch(InterruptedException e) {
+                    return;
+                }
+                for(int x = 0; x < each; x++){
+                    if(session < creators) create("session " + session + " " + x, "");
+                    else seen.add(index());
+                }
+            }));
+        }
+        for(Thread session : sessions) session.start();
+        go.countDown();
+        try {
+            for(Thread session : sessions) session.join();
+        } catch(InterruptedException e) {
+            check("sessions finish", false);
+            return;
+        }
+        check("every session got the same index", seen.size() == 1);
+        int wrong = 0;
+        for(int place = 0; place < data.size(); place++){
+            List<Integer> found = index().find(data.atPlace(place).getName());
+            if(found.size() != 1 || found.get(0) != place) wrong++;
+        }
+        check(data.size() + " profiles each indexed once, " + wrong + " wrong", wrong == 0 && data.size() == 2000 + creators * each);
+        ProfileIndex.shared = null;
+    }
+
+    /**
+     * Follows and unfollows at random from several sessions at once, the same moves for the
+     * same seed
+     * @param list The profiles to follow between
+     * @param seed Picks the moves
+     */
+    static void followAtRandom(SimpleStackInterface<Profile> list, long seed){
+        List<Thread> sessions = new ArrayList<Thread>();
+        for(int t = 0; t < 8; t++){
+            final Random random = new Random(seed + t);
+            sessions.add(new Thread(() -> {
+                for(int x = 0; x < 20000; x++){
+                    Profile p = list.atPlace(random.nextInt(list.size()));
+                    if(random.nextInt(4) == 0) p.unfollow();
+                    else p.follow(list.atPlace(random.nextInt(list.size())));
+                }
+            }));
+        }
+        for(Thread session : sessions) session.start();
+        for(Thread session : sessions){
+            try {
+                session.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Tests that every profile's follower set and count match who actually follows it after
+     * sessions follow and unfollow at once, and that they survive a save and restore
+     * @param list An empty list of the backend to test
+     * @param backend What to call it
+     */
+    public static void testFollowerCounts(SimpleStackInterface<Profile> list, String backend){
+        System.err.println("Testing follower counts with " + backend);
+        for(int x = 0; x < 300; x++) list.add(new Profile("p" + x, ""));
+        followAtRandom(list, 24);
+        Map<ProfileInterface, Set<ProfileInterface>> expected = new IdentityHashMap<ProfileInterface, Set<ProfileInterface>>();
+        for(int place = 0; place < list.size(); place++){
+            Profile p = list.atPlace(place);
+            for(ProfileInterface other : p.followingView()){
+                expected.computeIfAbsent(other, key -> Collections.newSetFromMap(new IdentityHashMap<ProfileInterface, Boolean>())).add(p);
+            }
+        }
+        int wrong = 0;
+        for(int place = 0; place < list.size(); place++){
+            Profile p = list.atPlace(place);
+            Set<ProfileInterface> fans = expected.getOrDefault(p, Collections.<ProfileInterface>emptySet());
+            if(p.followerCount() != fans.size() || !fans.equals(new HashSet<ProfileInterface>(p.followers()))) wrong++;
+        }
+        check("followers match follows after concurrent changes, " + wrong + " wrong", wrong == 0);
+        try {
+            Path file = Files.createTempFile("profiles", ".snap");
+            try {
+                SnapshotFormat.write(list, file.toString(), 0);
+                String before = describe(list);
+                check("follower counts survive a save and restore", describe(SnapshotFormat.read(file.toString())).equals(before));
+                check("follower counts survive a save and -lazy restore", describe(new MappedProfileStore(file.toString())).equals(before));
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+        catch(IOException e) {
+            check("follower counts save and restore: " + e, false);
+        }
+    }
+
+    /**
+     * Tests that -compact's int arrays give the same follows, follower counts and
+     * recommendations as profile objects after the same follows and unfollows, and that a
+     * graph hands out the same profile object for a number while it is held
+     */
+    public static void testCompactAgrees(){
+        System.err.println("Testing ProfileGraph against profile objects");
+        SimpleStackInterface<Profile> objects = new ProfileRegistry();
+        ProfileGraph graph = new ProfileGraph();
+        for(int x = 0; x < 500; x++){
+            objects.add(new Profile("p" + x, ""));
+            graph.add(new Profile("p" + x, ""));
+        }
+        Random random = new Random(25);
+        int disagree = 0;
+        for(int x = 0; x < 20000; x++){
+            int from = random.nextInt(500);
+            if(random.nextInt(5) == 0){
+                ProfileInterface a = objects.atPlace(from).unfollow(), b = graph.atPlace(from).unfollow();
+                if(a == null ? b != null : b == null || !a.getName().equals(b.getName())) disagree++;
+            }
+            else {
+                int to = random.nextInt(random.nextBoolean() ? 50 : 500);      //some profiles much more followed
+                if(objects.atPlace(from).follow(objects.atPlace(to)) != graph.atPlace(from).follow(graph.atPlace(to))) disagree++;
+            }
+        }
+        check("follow and unfollow return the same, " + disagree + " differ", disagree == 0);
+        check("follows and follower counts match", describe(objects).equals(describe(graph)));
+        for(int hops = 2; hops <= 3; hops++){
+            disagree = 0;
+            for(int place = 0; place < 500; place++){
+                List<String> a = names(FriendRecommender.recommend(objects.atPlace(place), 5, hops, null));
+                List<String> b = names(graph.atPlace(place).recommend(5, hops));
+                if(!a.equals(b)) disagree++;
+            }
+            check(hops + " hop recommendations match, " + disagree + " differ", disagree == 0);
+        }
+        ProfileGraph star = new ProfileGraph();
+        for(int x = 0; x < 5000; x++) star.add(new Profile("s" + x, ""));
+        int refused = 0;
+        for(int x = 1; x < 5000; x++){
+            star.atPlace(x).follow(star.atPlace(0));
+            star.atPlace(0).follow(star.atPlace(x));
+            if(star.atPlace(0).follow(star.atPlace(x)) || star.atPlace(x).follow(star.atPlace(0))) refused--;
+        }
+        for(int x = 1; x < 5000; x += 2){
+            if(star.atPlace(x).unfollow() != star.atPlace(0)) refused--;      //every other follower goes
+        }
+        for(int x = 1; x < 2500; x++) star.atPlace(0).unfollow();            //and the newest half of the follows
+        for(int x = 1; x < 5000; x++){
+            if(star.atPlace(0).follow(star.atPlace(x)) != (x > 2500)) refused--;
+        }
+        check("a profile with thousands of follows and followers keeps them straight", refused == 0
+                && star.atPlace(0).followerCount() == 2499 && star.atPlace(0).followers().size() == 2499
+                && star.atPlace(0).followingView().size() == 4999);
+        Profile held = graph.atPlace(7);
+        for(int place = 0; place < 500; place++) graph.atPlace(place).getName();     //views that are let go
+        System.gc();
+        check("a held profile stays the same object", graph.atPlace(7) == held && graph.get(graph.size() - 8) == held);
+    }
+
+    /**
+     * Makes the same changes to a list: a rename, a follow, an unfollow, two profiles taken
+     * off the top and a new one that follows someone
+     */
+    static void changeForLazySave(SimpleStackInterface<Profile> list){
+        list.remove();
+        list.remove();
+        list.atPlace(5).setName("renamed");
+        list.atPlace(10).follow(list.atPlace(20));
+        list.atPlace(30).unfollow();
+        Profile made = new Profile("made", "since opening");
+        made.follow(list.atPlace(3));
+        list.add(made);
+    }
+
+    /**
+     * Tests that saving a -lazy store copies what hasn't been read instead of handing out a
+     * profile for every record, and still saves what the list writer would
+     */
+    public static void testLazySave(){
+        System.err.println("Testing saving a -lazy store");
+        try {
+            Path first = Files.createTempFile("profiles", ".snap");
+            Path second = Files.createTempFile("profiles", ".snap");
+            Path third = Files.createTempFile("profiles", ".snap");
+            try {
+                SimpleStackInterface<Profile> list = new ProfileRegistry();
+                for(int x = 0; x < 300; x++) list.add(new Profile("p" + x, "about p" + x));
+                followAtRandom(list, 26);
+                SnapshotFormat.write(list, first.toString(), 0);
+
+                MappedProfileStore store = new MappedProfileStore(first.toString());
+                SnapshotFormat.write(store, second.toString(), 0);
+                check("an untouched store saves the same bytes", Arrays.equals(Files.readAllBytes(first), Files.readAllBytes(second)));
+                check("an untouched store hands out no profiles to save", store.profilesMade() == 0);
+
+                changeForLazySave(store);
+                ProfileRegistry loaded = SnapshotFormat.read(first.toString());
+                changeForLazySave(loaded);
+                int made = store.profilesMade();
+                SnapshotFormat.write(store, second.toString(), 0);
+                check("saving a changed store hands out no more profiles, " + made + " before and " + store.profilesMade() + " after", store.profilesMade() == made);
+                SnapshotFormat.write(loaded, third.toString(), 0);
+                String expected = describe(SnapshotFormat.read(third.toString()));
+                check("a changed store saves what the list writer saves", describe(SnapshotFormat.read(second.toString())).equals(expected));
+                check("and it opens -lazy the same", describe(new MappedProfileStore(second.toString())).equals(expected));
+            } finally {
+                Files.deleteIfExists(first);
+                Files.deleteIfExists(second);
+                Files.deleteIfExists(third);
+            }
+        }
+        catch(IOException e) {
+            check("saving a -lazy store: " + e, false);
+        }
+    }
+
 }
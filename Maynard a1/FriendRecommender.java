@@ -0,0 +1,142 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Suggests profiles to follow by counting mutual follows. A profile followed by three of
+ * the people you follow scores higher than one followed by just one of them. With three hops
+ * the number of paths through a friend of a friend breaks ties between profiles with the same
+ * number of mutual follows, and lets profiles further out be suggested at all.
+ *
+ * Profiles have no numbers to index a bitset with, so "seen" sets and scores are kept in
+ * identity maps, and only the best howMany candidates are kept in a small heap while scoring.
+ * @author Lenny Maynard
+ */
+public class FriendRecommender {
+
+    /**
+     * A profile being scored
+     */
+    static class Candidate {
+        final ProfileInterface profile;
+        final int order;         //when it was first reached, earlier is from more recent follows
+        int mutual;              //people this profile follows who follow the candidate
+        long distant;            //three hop paths to the candidate
+
+        Candidate(ProfileInterface profile, int order){
+            this.profile = profile;
+            this.order = order;
+        }
+
+        /**
+         * Compares two candidates
+         * @return Less than 0 if a is a worse suggestion than b
+         */
+        static int compare(Candidate a, Candidate b){
+            if(a.mutual != b.mutual) return Integer.compare(a.mutual, b.mutual);
+            if(a.distant != b.distant) return Long.compare(a.distant, b.distant);
+            return Integer.compare(b.order, a.order);     //reached later is worse
+        }
+    }
+
+    /**
+     * Finds the best profiles for a profile to follow, leaving out itself and anyone it
+     * already follows
+     * @param profile The profile to make suggestions for
+     * @param howMany The most suggestions to return
+     * @param hops 2 to only look at friends of friends, 3 to look one step further
+     * @return Up to howMany profiles, best first; empty if there is nothing to suggest
+     */
+    public static List<ProfileInterface> recommend(ProfileInterface profile, int howMany, int hops){
+        return recommend(profile, howMany, hops, null);
+    }
+
+    /**
+     * Finds the best profiles for a profile to follow, and notes whose follows were looked at
+     * so a cache knows which changes make the answer stale
+     * @param profile The profile to make suggestions for
+     * @param howMany The most suggestions to return
+     * @param hops 2 to only look at friends of friends, 3 to look one step further
+     * @param read Filled with every profile whose follows were read, or null
+     * @return Up to howMany profiles, best first; empty if there is nothing to suggest
+     */
+    public static List<ProfileInterface> recommend(ProfileInterface profile, int howMany, int hops,
+                                                   List<ProfileInterface> read){
+        if(profile instanceof GraphProfile){
+            GraphProfile p = (GraphProfile) profile;
+            return p.graph().recommend(p.id(), howMany, hops, read);     //scores numbers in flat arrays instead
+        }
+        IdentityHashMap<ProfileInterface, Candidate> scores = new IdentityHashMap<ProfileInterface, Candidate>();
+        List<ProfileInterface> mine = follows(profile);
+        if(read != null){
+            read.add(profile);
+            read.addAll(mine);
+        }
+
+        //two hops: everyone followed by someone this profile follows
+        List<Candidate> reached = new ArrayList<Candidate>();
+        for(ProfileInterface friend : mine){
+            for(ProfileInterface next : follows(friend)){
+                if(next == profile) continue;
+                Candidate c = scores.get(next);
+                if(c == null){
+                    c = new Candidate(next, scores.size());
+                    scores.put(next, c);
+                    reached.add(c);
+                }
+                c.mutual++;
+            }
+        }
+
+        //three hops: spread each friend of a friend's path count one step further
+        if(hops >= 3){
+            for(Candidate middle : reached){
+                if(read != null) read.add(middle.profile);
+                for(ProfileInterface next : follows(middle.profile)){
+                    if(next == profile) continue;
+                    Candidate c = scores.get(next);
+                    if(c == null){
+                        c = new Candidate(next, scores.size());
+                        scores.put(next, c);
+                    }
+                    c.distant += middle.mutual;
+                }
+            }
+        }
+
+        for(ProfileInterface friend : mine) scores.remove(friend);     //already followed
+
+        //keep the best howMany in a heap with the worst on top
+        PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(Math.max(1, howMany + 1), Candidate::compare);
+        for(Candidate c : scores.values()){
+            if(howMany <= 0) break;
+            if(best.size() < howMany){
+                best.add(c);
+            }
+            else if(Candidate.compare(c, best.peek()) > 0){
+                best.poll();
+                best.add(c);
+            }
+        }
+        List<ProfileInterface> result = new ArrayList<ProfileInterface>(best.size());
+        while(!best.isEmpty()) result.add(best.poll().profile);
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Gets everyone a profile follows, most recent first
+     * @param profile The profile
+     * @return The profiles it follows
+     */
+    static List<ProfileInterface> follows(ProfileInterface profile){
+        if(profile instanceof Profile) return ((Profile) profile).followingView();
+        List<ProfileInterface> list = new ArrayList<ProfileInterface>();
+        for(ProfileInterface p : profile.following(10)){     //other implementations only share their top follows
+            if(p != null) list.add(p);
+        }
+        return list;
+    }
+}
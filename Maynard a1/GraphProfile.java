@@ -0,0 +1,177 @@
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A profile handed out by a ProfileGraph. It holds nothing but the graph and its number, and
+ * each method reads or changes the graph's arrays for that number under the graph's own
+ * locks. It is a Profile so the same lists and sessions work with every backend, but none
+ * of Profile's fields are used.
+ *
+ * setName also holds this profile's lock, like Profile's does, so the name index sees a
+ * rename as one step.
+ * @author Lenny Maynard
+ */
+public class GraphProfile extends Profile {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient ProfileGraph graph;
+
+    /**
+     * A constructor for the view of a number in a graph
+     * @param graph The graph holding the profile
+     * @param id The profile's number in the graph
+     */
+    GraphProfile(ProfileGraph graph, int id){
+        super(id);
+        this.graph = graph;
+    }
+
+    /**
+     * Checks whether this profile is a view of a graph
+     * @param from The graph
+     * @return true if it belongs to that graph
+     */
+    boolean isFrom(ProfileGraph from){
+        return graph == from;
+    }
+
+    /**
+     * Gets the graph this profile is a view of
+     * @return The graph
+     */
+    ProfileGraph graph(){
+        return graph;
+    }
+
+    /**
+     * Gets everyone following this profile, as they were when asked
+     * @return A read-only set of the profiles following this one
+     */
+    public Set<ProfileInterface> followers(){
+        return Collections.unmodifiableSet(new FollowerView(graph.followers(id())));
+    }
+
+    /**
+     * Counts the profiles following this one, without scanning anyone's follows
+     * @return The number of followers
+     */
+    public int followerCount(){
+        return graph.followerCount(id());
+    }
+
+    /**
+     * The followers of a profile in a graph, as profiles
+     */
+    private class FollowerView extends AbstractSet<ProfileInterface> {
+        final int[] ids;
+
+        FollowerView(int[] ids){
+            this.ids = ids;
+        }
+
+        public Iterator<ProfileInterface> iterator(){
+            return new Iterator<ProfileInterface>(){
+                int next;
+
+                public boolean hasNext(){
+                    return next < ids.length;
+                }
+
+                public ProfileInterface next(){
+                    if(next == ids.length) throw new NoSuchElementException();
+                    return graph.profile(ids[next++]);
+                }
+            };
+        }
+
+        public int size(){
+            return ids.length;
+        }
+    }
+
+    /**
+     * Sets the profile's name
+     * @param name The new name
+     */
+    public synchronized void setName(String name){
+        String old = graph.name(id());
+        graph.setName(id(), name);
+        if(ProfileIndex.shared != null) ProfileIndex.shared.renamed(this, old, name);     //keep name searches right
+    }
+
+    /**
+     * Gets the profile's name
+     * @return The name
+     */
+    public String getName(){
+        return graph.name(id());
+    }
+
+    /**
+     * Sets the profile's "about me" blurb
+     * @param about The new blurb
+     */
+    public void setAbout(String about){
+        graph.setAbout(id(), about);
+    }
+
+    /**
+     * Gets the profile's "about me" blurb
+     * @return The blurb
+     */
+    public String getAbout(){
+        return graph.about(id());
+    }
+
+    /**
+     * Follows another profile in the same graph, unless this profile already does
+     * @param other The profile to follow
+     * @return True if successful, false if it is already followed or not in this graph
+     */
+    public boolean follow(ProfileInterface other){
+        if(!(other instanceof GraphProfile) || !((GraphProfile) other).isFrom(graph)) return false;
+        boolean added = graph.follow(id(), ((GraphProfile) other).id());
+        if(added) RecommendationCache.shared.changed(this);     //recommendations that read this profile's follows are stale
+        return added;
+    }
+
+    /**
+     * Removes the most recently-followed profile from this profile's follows
+     * @return The profile that was unfollowed, or null if it followed nobody
+     */
+    public ProfileInterface unfollow(){
+        int other = graph.unfollow(id());
+        if(other < 0) return null;
+        RecommendationCache.shared.changed(this);
+        return graph.profile(other);
+    }
+
+    /**
+     * Returns this profile's most recent follows
+     * @param howMany The number of profiles to return
+     * @return An array of size howMany, containing the most recently-followed profiles
+     */
+    public ProfileInterface[] following(int howMany){
+        ProfileInterface[] people = new ProfileInterface[howMany];
+        int[] ids = graph.follows(id());
+        for(int i = 0; i < howMany && i < ids.length; i++) people[i] = graph.profile(ids[ids.length - 1 - i]);
+        return people;
+    }
+
+    /**
+     * Gets everyone this profile follows, as they were when asked
+     * @return The followed profiles, most recently-followed first
+     */
+    public List<ProfileInterface> followingView(){
+        int[] ids = graph.follows(id());
+        List<ProfileInterface> people = new ArrayList<ProfileInterface>(ids.length);
+        for(int i = ids.length - 1; i >= 0; i--) people.add(graph.profile(ids[i]));
+        return people;
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.HashMap;
+
+/**
+ * A simple stack that also keeps a hash index of its items, so contains doesn't have to scan
+ * the whole array. The index counts how many times each item is in the stack, since the stack
+ * may hold duplicates. It isn't saved with the stack; it is rebuilt from the array on restore.
+ * @author Lenny Maynard
+ */
+public class HashedSimpleStack<T> extends SimpleStack<T> {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient HashMap<T, Integer> index;
+
+    /**
+     * A no-arg constructor that initializes all fields
+     */
+    public HashedSimpleStack(){
+        super();
+        index = new HashMap<T, Integer>();
+    }
+
+    /**
+     * A constructor that takes in desired capacity
+     * and initializes all fields
+     * @param capacity desired stack capacity
+     */
+    public HashedSimpleStack(int capacity){
+        super(capacity);
+        index = new HashMap<T, Integer>();
+    }
+
+    /**
+     * A constructor that takes in a capacity hint and whether the stack
+     * should grow past it
+     * @param capacity desired starting capacity
+     * @param growable true to double the capacity whenever the stack fills
+     */
+    public HashedSimpleStack(int capacity, boolean growable){
+        super(capacity, growable);
+        index = new HashMap<T, Integer>();
+    }
+
+    /**
+     * A constructor that copies the items of another stack, keeping their order and whether
+     * it grows
+     * @param other The stack to copy
+     */
+    public HashedSimpleStack(SimpleStack<T> other){
+        super(other.capacity, other.growable);
+        shrinking = other.shrinking;
+        minCapacity = other.minCapacity;
+        index = new HashMap<T, Integer>();
+        for(int x = 0; x < other.fill; x++) add(other.array[x]);      //bottom first, so the top stays on top
+    }
+
+    /**
+     * Adds a new T object to the top of the stack
+     * @param item The item to be added
+     * @return True if successful, false if there is no more room
+     */
+    public boolean add(T item){
+        if(!super.add(item)) return false;
+        Integer count = index.get(item);
+        index.put(item, count == null ? 1 : count + 1);     //count one more copy of the item
+        return true;
+    }
+
+    /**
+     * Removes the top T object
+     * @return The item that is removed, or null if no item can be removed
+     */
+    public T remove(){
+        if(fill == 0) return null;
+        T hold = super.remove();
+        int count = index.get(hold);
+        if(count == 1) index.remove(hold);                  //last copy gone
+        else index.put(hold, count - 1);
+        return hold;
+    }
+
+    /**
+     * Determines if the stack contains the specified item, by looking it up in the index
+     * @param item The item in question
+     * @return True if the item is contained in the stack, false otherwise
+     */
+    public boolean contains(T item){
+        return index.containsKey(item);
+    }
+
+    /**
+     * Restores the stack, then rebuilds the index from the restored array
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        index = new HashMap<T, Integer>();
+        for(int x = 0; x < fill; x++){
+            Integer count = index.get(array[x]);
+            index.put(array[x], count == null ? 1 : count + 1);
+        }
+    }
+}
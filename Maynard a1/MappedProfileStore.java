@@ -0,0 +1,494 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A profile list that reads profiles out of a memory-mapped snapshot only when they are used.
+ * Opening it reads the header and nothing else, so startup takes the same time however many
+ * profiles there are. get hands out a Profile that hasn't read anything yet; its name and
+ * about are read the first time they are asked for, and its follows the first time they are
+ * needed, using the snapshot's index to find the record. Followers are read the same way.
+ *
+ * The snapshot itself never changes. Edits and follows happen on the profiles in memory,
+ * and new profiles are kept on top of the snapshot's ones, until the list is saved as a new
+ * snapshot. Saving copies the records nobody has read straight from the mapped file, so it
+ * hands out no profiles either.
+ *
+ * Several sessions can use the store at once. Reading the mapped file needs no lock, the
+ * same Profile is handed out for a number however many sessions ask at once, and profiles
+ * made since opening are kept in a ProfileRegistry.
+ * @author Lenny Maynard
+ */
+public class MappedProfileStore implements SimpleStackInterface<Profile> {
+
+    static final int SEGMENT = 1 << 30;       //bytes mapped per buffer, since one can't pass 2GB
+
+    private final MappedByteBuffer[] segments;
+    private final int total;                  //profiles in the snapshot
+    private volatile int listed;              //profiles from the snapshot still on the list
+    private final long index;                 //file position of the record index
+    private final ConcurrentHashMap<Integer, Profile> profiles = new ConcurrentHashMap<Integer, Profile>();    //profiles handed out so far
+    private final ProfileRegistry added = new ProfileRegistry();                                            //profiles made since opening
+
+    /**
+     * Maps a snapshot file and reads its header
+     * @param fileName The snapshot to open
+     * @throws IOException if the file can't be read or isn't a snapshot
+     */
+    public MappedProfileStore(String fileName) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT - 1) / SEGMENT)];
+            for(int x = 0; x < segments.length; x++){
+                long start = (long) x * SEGMENT;
+                segments[x] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT, size - start));
+            }
+        } finally {
+            file.close();                     //the mapping stays valid after the file is closed
+        }
+        if(segments.length == 0 || getInt(0) != SnapshotFormat.MAGIC) throw new IOException(fileName + " is not a profile snapshot");
+        int version = getInt(4);
+        if(version != SnapshotFormat.VERSION) throw new IOException(fileName + " is snapshot version " + version + ", expected " + SnapshotFormat.VERSION);
+        total = getInt(8);
+        listed = getInt(12);
+        index = getLong(16);
+    }
+
+    /**
+     * Gets the profile with a number from the snapshot, making an unread one the first time
+     * @param id The profile's number
+     * @return The profile, the same object every time
+     */
+    Profile profile(int id){
+        if(id < 0 || id >= total) throw new IndexOutOfBoundsException("No profile " + id + " in the snapshot");
+        Profile p = profiles.get(id);
+        if(p == null) p = profiles.computeIfAbsent(id, key -> new Profile(this, key));    //one profile even if sessions race
+        return p;
+    }
+
+    /**
+     * Reads a profile's name from the snapshot
+     */
+    String name(int id){
+        return getString(offset(id));
+    }
+
+    /**
+     * Gets the name of the profile at a place without making a Profile for it, so the name
+     * index can be built without reading every record
+     * @param place The place, 0 for the snapshot's first profile
+     * @return The profile's current name, or null if there is no such place
+     */
+    String nameAt(int place){
+        int fromFile = listed;
+        if(place < 0) return null;
+        if(place < fromFile){
+            Profile p = profiles.get(place);
+            return p == null ? name(place) : p.getName();      //a profile in memory may have been renamed
+        }
+        Profile p = added.atPlace(place - fromFile);
+        return p == null ? null : p.getName();
+    }
+
+    /**
+     * Reads a profile's about blurb from the snapshot
+     */
+    String about(int id){
+        long pos = offset(id);
+        return getString(pos + 4 + getInt(pos));
+    }
+
+    /**
+     * Reads the numbers of the profiles a profile follows, oldest first
+     */
+    int[] follows(int id){
+        long pos = offset(id);
+        pos += 4 + getInt(pos);           //skip the name
+        pos += 4 + getInt(pos);           //skip the about
+        int[] ids = new int[getInt(pos)];
+        for(int x = 0; x < ids.length; x++) ids[x] = getInt(pos + 4 + 4L * x);
+        return ids;
+    }
+
+    /**
+     * Reads the numbers of the profiles following a profile
+     */
+    int[] followers(int id){
+        long pos = offset(id);
+        pos += 4 + getInt(pos);           //skip the name
+        pos += 4 + getInt(pos);           //skip the about
+        pos += 4 + 4L * getInt(pos);      //skip the follows
+        int[] ids = new int[getInt(pos)];
+        for(int x = 0; x < ids.length; x++) ids[x] = getInt(pos + 4 + 4L * x);
+        return ids;
+    }
+
+    private long offset(int id){
+        return getLong(index + 8L * id);
+    }
+
+    private byte getByte(long pos){
+        return segments[(int) (pos / SEGMENT)].get((int) (pos % SEGMENT));
+    }
+
+    private int getInt(long pos){
+        int at = (int) (pos % SEGMENT);
+        MappedByteBuffer segment = segments[(int) (pos / SEGMENT)];
+        if(at + 4 <= segment.limit()) return segment.getInt(at);
+        int value = 0;
+        for(int x = 0; x < 4; x++) value = (value << 8) | (getByte(pos + x) & 0xFF);    //runs into the next segment
+        return value;
+    }
+
+    private long getLong(long pos){
+        return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xFFFFFFFFL);
+    }
+
+    private String getString(long pos){
+        byte[] bytes = new byte[getInt(pos)];
+        pos += 4;
+        int at = (int) (pos % SEGMENT);
+        MappedByteBuffer segment = segments[(int) (pos / SEGMENT)];
+        if(at + bytes.length <= segment.limit()){
+            ByteBuffer view = segment.duplicate();
+            view.position(at);
+            view.get(bytes);
+        }
+        else {
+            for(int x = 0; x < bytes.length; x++) bytes[x] = getByte(pos + x);     //runs into the next segment
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the list as a new snapshot without handing out a profile for any record. A
+     * record whose profile hasn't been read is copied from the mapped file, and a profile
+     * that has been read only has the parts it read written from memory. Like the list
+     * writer, the list comes first and anyone reached only through a follow after it, so a
+     * snapshot profile nobody lists or follows any more is left out.
+     * @param fileName The file to write
+     * @param sequence The number of the last logged change the list includes
+     * @throws IOException if the file can't be written
+     */
+    void write(String fileName, long sequence) throws IOException {
+        Numbers numbers = new Numbers();
+        int count = numbers.count();
+        FileChannel channel = new FileOutputStream(fileName).getChannel();
+        try {
+            SnapshotFormat.Writer out = SnapshotFormat.start(channel, count, numbers.onList, sequence);
+            long[] offsets = new long[count];
+            for(int x = 0; x < count; x++){
+                offsets[x] = out.position();
+                if(numbers.storeIds[x] >= 0) writeRecord(out, numbers.storeIds[x], numbers);
+                else writeMade(out, numbers.people.get(x), numbers);
+            }
+            SnapshotFormat.finish(channel, out, offsets);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Numbers the profiles of a snapshot being written: the list bottom first, then anyone
+     * reached through a follow, found from the mapped follow numbers where nobody has read
+     * them
+     */
+    private class Numbers {
+        final int[] ids = new int[total];                 //new number of each snapshot profile, -1 if left out
+        int[] storeIds = new int[16];                     //snapshot number at each new number, -1 for the rest
+        final List<ProfileInterface> people = new ArrayList<ProfileInterface>();   //profile at each new number, null for snapshot ones
+        final IdentityHashMap<ProfileInterface, Integer> others = new IdentityHashMap<ProfileInterface, Integer>();
+        final int onList;
+        boolean unchanged = true;                         //every snapshot profile keeps its number
+
+        Numbers(){
+            Arrays.fill(ids, -1);
+            int fromFile = listed;
+            for(int id = 0; id < fromFile; id++) add(id);
+            int made = added.size();
+            for(int x = 0; x < made; x++) add(added.atPlace(x));
+            onList = people.size();
+            for(int x = 0; x < people.size(); x++){
+                int id = storeIds[x];
+                if(id < 0){
+                    for(ProfileInterface other : FriendRecommender.follows(people.get(x))) add(other);
+                    continue;
+                }
+                Profile shell = profiles.get(id);
+                if(shell == null || shell.followsUnread()){
+                    for(int other : follows(id)) add(other);
+                }
+                else {
+                    for(ProfileInterface other : FriendRecommender.follows(shell)) add(other);
+                }
+            }
+            for(int id = 0; id < total; id++) if(ids[id] != id) unchanged = false;
+        }
+
+        int count(){
+            return people.size();
+        }
+
+        private void add(ProfileInterface p){
+            if(p instanceof Profile && ((Profile) p).isFrom(MappedProfileStore.this)) add(((Profile) p).id());
+            else if(!others.containsKey(p)){
+                others.put(p, people.size());
+                place(-1, p);
+            }
+        }
+
+        private void add(int id){
+            if(ids[id] >= 0) return;
+            ids[id] = people.size();
+            place(id, null);
+        }
+
+        private void place(int id, ProfileInterface p){
+            if(people.size() == storeIds.length) storeIds = Arrays.copyOf(storeIds, storeIds.length * 2);
+            storeIds[people.size()] = id;
+            people.add(p);
+        }
+
+        /**
+         * Gets the new number of a snapshot profile, or -1 if it is left out
+         */
+        int of(int id){
+            return ids[id];
+        }
+
+        /**
+         * Gets the new number of a profile, or -1 if it is left out
+         */
+        int of(ProfileInterface p){
+            if(p instanceof Profile && ((Profile) p).isFrom(MappedProfileStore.this)) return of(((Profile) p).id());
+            Integer id = others.get(p);
+            return id == null ? -1 : id;
+        }
+    }
+
+    /**
+     * Writes one of the snapshot's records, copying whatever its profile hasn't read
+     */
+    private void writeRecord(SnapshotFormat.Writer out, int id, Numbers numbers) throws IOException {
+        Profile shell = profiles.get(id);
+        long pos = offset(id);
+        long text = 4 + getInt(pos);
+        text += 4 + getInt(pos + text);                   //the name and the about
+        if(shell == null && numbers.unchanged){
+            long followers = pos + text + 4 + 4L * getInt(pos + text);
+            copy(out, pos, followers + 4 + 4L * getInt(followers) - pos);     //the whole record as it is
+            return;
+        }
+        if(shell == null || shell.textUnread()) copy(out, pos, text);
+        else {
+            out.putString(shell.getName());
+            out.putString(shell.getAbout());
+        }
+        if(shell == null || shell.followsUnread()) putNumbers(out, follows(id), numbers);
+        else putFollows(out, shell, numbers);
+        Set<ProfileInterface> fans = shell == null ? null : shell.followersMade();
+        if(fans == null) putNumbers(out, followers(id), numbers);
+        else putFollowers(out, fans, numbers);
+    }
+
+    /**
+     * Writes a profile that isn't one of the snapshot's
+     */
+    private void writeMade(SnapshotFormat.Writer out, ProfileInterface p, Numbers numbers) throws IOException {
+        out.putString(p.getName());
+        out.putString(p.getAbout());
+        putFollows(out, p, numbers);
+        if(p instanceof Profile) putFollowers(out, ((Profile) p).followers(), numbers);
+        else out.putInt(0);
+    }
+
+    /**
+     * Writes a list of the snapshot's profile numbers under their new numbers
+     */
+    private void putNumbers(SnapshotFormat.Writer out, int[] ids, Numbers numbers) throws IOException {
+        int count = 0;
+        for(int id : ids) if(numbers.of(id) >= 0) ids[count++] = numbers.of(id);     //a follower left out isn't one after restoring
+        out.putInt(count);
+        for(int y = 0; y < count; y++) out.putInt(ids[y]);
+    }
+
+    /**
+     * Writes the follows of a profile in memory, oldest first
+     */
+    private void putFollows(SnapshotFormat.Writer out, ProfileInterface p, Numbers numbers) throws IOException {
+        List<ProfileInterface> follows = FriendRecommender.follows(p);     //newest first
+        int[] ids = new int[follows.size()];
+        int count = 0;
+        for(int y = follows.size() - 1; y >= 0; y--){
+            int id = numbers.of(follows.get(y));
+            if(id >= 0) ids[count++] = id;
+        }
+        out.putInt(count);
+        for(int y = 0; y < count; y++) out.putInt(ids[y]);
+    }
+
+    /**
+     * Writes a follower set of a profile in memory
+     */
+    private void putFollowers(SnapshotFormat.Writer out, Set<ProfileInterface> fans, Numbers numbers) throws IOException {
+        int[] ids = new int[fans.size()];
+        int count = 0;
+        for(ProfileInterface fan : fans){
+            int id = numbers.of(fan);
+            if(id >= 0 && count < ids.length) ids[count++] = id;     //anyone not saved isn't a follower after restoring
+        }
+        out.putInt(count);
+        for(int y = 0; y < count; y++) out.putInt(ids[y]);
+    }
+
+    /**
+     * Copies bytes of the mapped file to a snapshot being written
+     */
+    private void copy(SnapshotFormat.Writer out, long pos, long length) throws IOException {
+        while(length > 0){
+            MappedByteBuffer segment = segments[(int) (pos / SEGMENT)];
+            int at = (int) (pos % SEGMENT);
+            int part = (int) Math.min(length, segment.limit() - at);
+            ByteBuffer view = segment.duplicate();
+            view.position(at);
+            view.limit(at + part);
+            out.putBytes(view);
+            pos += part;
+            length -= part;
+        }
+    }
+
+    /**
+     * Gets how many profiles have been handed out for the snapshot's records
+     * @return The number of profiles made so far
+     */
+    int profilesMade(){
+        return profiles.size();
+    }
+
+    /**
+     * Adds a new profile to the top of the list
+     * @param item The profile to be added
+     * @return True, since the list grows as needed
+     */
+    public boolean add(Profile item){
+        return added.add(item);
+    }
+
+    /**
+     * Removes the top profile
+     * @return The profile that is removed, or null if the list is empty
+     */
+    public synchronized Profile remove(){
+        if(!added.isEmpty()) return added.remove();
+        if(listed == 0) return null;
+        listed--;
+        return profile(listed);
+    }
+
+    /**
+     * Returns an array of the top profiles, most recently-added first
+     * @param howMany The number of profiles to return
+     * @return An array of the profiles, or null if the list does not contain enough
+     */
+    public Object[] topItems(int howMany){
+        if(howMany > size()) return null;
+        Object[] tops = new Object[howMany];
+        for(int x = 0; x < howMany; x++) tops[x] = get(x);
+        return tops;
+    }
+
+    /**
+     * Gets a profile by its place from the top of the list, without reading it yet
+     * @param i The place, 0 for the most recently-added profile
+     * @return The profile, or null if the list does not contain that many
+     */
+    public Profile get(int i){
+        int top = size();
+        if(i < 0 || i >= top) return null;
+        return atPlace(top - 1 - i);
+    }
+
+    /**
+     * Gets a profile by its place counting from the bottom of the list
+     * @param place The place, 0 for the snapshot's first profile
+     * @return The profile, or null if the list does not contain that many
+     */
+    public Profile atPlace(int place){
+        int fromFile = listed;
+        if(place < 0) return null;
+        if(place < fromFile) return profile(place);
+        return added.atPlace(place - fromFile);
+    }
+
+    /**
+     * Returns a read-only list of the top profiles, most recently-added first
+     * @param howMany The most profiles the list should hold
+     * @return A list of up to howMany of the most recently-added profiles
+     */
+    public List<Profile> topView(int howMany){
+        return new TopView(howMany);
+    }
+
+    /**
+     * The list returned by topView
+     */
+    private class TopView extends AbstractList<Profile> implements RandomAccess {
+        final int howMany;
+
+        TopView(int howMany){
+            this.howMany = howMany;
+        }
+
+        public Profile get(int i){
+            if(i < 0 || i >= size()) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+            return MappedProfileStore.this.get(i);
+        }
+
+        public int size(){
+            return Math.max(0, Math.min(howMany, MappedProfileStore.this.size()));
+        }
+    }
+
+    /**
+     * Determines if the list contains a profile, without reading any profiles
+     * @param item The profile in question
+     * @return True if the profile is on the list, false otherwise
+     */
+    public boolean contains(Profile item){
+        if(item != null && item.isFrom(this)){
+            return profiles.get(item.id()) == item && item.id() < listed;
+        }
+        return added.contains(item);
+    }
+
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    /**
+     * The list grows as needed, so it is never full
+     * @return False
+     */
+    public boolean isFull(){
+        return false;
+    }
+
+    public int size(){
+        return listed + added.size();
+    }
+}
@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes made since the last snapshot, so a crash loses at most
+ * the changes that weren't synced yet instead of the whole session. restore replays it on
+ * top of the snapshot.
+ *
+ * Profiles are named by their place in the client's list counting from the bottom, which
+ * doesn't change since profiles are never taken off the list.
+ *
+ * Records are collected in memory and written and synced to disk together (group commit):
+ * once syncEvery records are waiting, or syncMillis has passed since the last sync, whichever
+ * comes first. A background thread syncs every syncMillis, so a change isn't held longer
+ * than that even if no other change follows it. With syncEvery 1 every change is on disk
+ * before the next one is made.
+ * Sessions share one log. Each call holds the log's lock while it adds its record, and
+ * callers log a change while still holding the lock of the profile they changed, so records
+ * go in the order the changes were made.
+ *
+ * Layout, all numbers big-endian: int magic "PRFL", int version, then records. Each record is
+ * an int payload length, an int CRC32 of the payload, and the payload: a long sequence
+ * number, a byte type, then
+ *  - CREATE: name, about
+ *  - EDIT: int profile, name, about
+ *  - FOLLOW: int follower, int followed
+ *  - UNFOLLOW: int profile
+ * with strings as an int byte length and UTF-8 bytes. A record cut short by a crash fails its
+ * length or CRC check, and it and anything after it are dropped.
+ * @author Lenny Maynard
+ */
+public class OperationLog {
+
+    static final int MAGIC = 0x5052464C;      //"PRFL"
+    static final int VERSION = 1;
+    static final int HEADER = 8;
+
+    static final byte CREATE = 1;
+    static final byte EDIT = 2;
+    static final byte FOLLOW = 3;
+    static final byte UNFOLLOW = 4;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final String fileName;
+    private final int syncEvery;
+    private final long syncMillis;
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 12);     //records written since the last sync
+    private int pendingRecords;
+    private int recordStart;                  //where the record being written starts in pending
+    private long lastSync;
+    private long sequence;                    //number of the last record, counting across compactions
+    private long records;                     //records in the file since it was last emptied
+    private ScheduledExecutorService flusher;     //syncs waiting records on a timer, null if syncMillis is 0
+
+    /**
+     * Opens a log, creating it if it doesn't exist
+     * @param fileName The log file
+     * @param syncEvery The most records to hold before writing and syncing them
+     * @param syncMillis The longest to hold a record before writing and syncing it
+     * @throws IOException if the file can't be opened or isn't a log
+     */
+    public OperationLog(String fileName, int syncEvery, long syncMillis) throws IOException {
+        this.fileName = fileName;
+        this.syncEvery = Math.max(1, syncEvery);
+        this.syncMillis = syncMillis;
+        file = new RandomAccessFile(fileName, "rw");
+        channel = file.getChannel();
+        if(channel.size() < HEADER){
+            writeHeader();
+        }
+        else {
+            ByteBuffer head = ByteBuffer.allocate(HEADER);
+            while(head.hasRemaining() && channel.read(head, head.position()) != -1);
+            if(head.getInt(0) != MAGIC) throw new IOException(fileName + " is not an operation log");
+            if(head.getInt(4) != VERSION) throw new IOException(fileName + " is log version " + head.getInt(4) + ", expected " + VERSION);
+        }
+        lastSync = System.currentTimeMillis();
+        if(this.syncEvery > 1 && syncMillis > 0){
+            flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "OperationLog flush");
+                thread.setDaemon(true);               //doesn't keep the client running
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::timedSync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Syncs records that have waited syncMillis, for the flush thread
+     */
+    private synchronized void timedSync(){
+        if(pendingRecords == 0 || System.currentTimeMillis() - lastSync < syncMillis) return;
+        try {
+            sync();
+        }
+        catch(IOException e) {
+            System.err.println("Something went wrong syncing the change log " + fileName);
+            e.printStackTrace();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        channel.truncate(0);
+        ByteBuffer head = ByteBuffer.allocate(HEADER);
+        head.putInt(MAGIC);
+        head.putInt(VERSION);
+        head.flip();
+        while(head.hasRemaining()) channel.write(head, head.position());
+        channel.force(false);
+        channel.position(HEADER);
+    }
+
+    /**
+     * Applies the logged changes that came after a snapshot. Anything after the last
+     * complete record is cut off, so new records follow good ones.
+     * @param data The client's profile list, as restored from the snapshot
+     * @param after The sequence number the snapshot was taken at
+     * @return The number of changes applied
+     * @throws IOException if the log can't be read
+     */
+    public synchronized int replay(SimpleStackInterface<Profile> data, long after) throws IOException {
+        sequence = Math.max(sequence, after);
+        long size = channel.size();
+        ByteBuffer in = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, Math.max(0, size - HEADER)));
+        while(in.hasRemaining() && channel.read(in, HEADER + in.position()) != -1);
+        in.flip();
+
+        int applied = 0;
+        long good = HEADER;
+        CRC32 crc = new CRC32();
+        while(in.remaining() >= 8){
+            int length = in.getInt();
+            int check = in.getInt();
+            if(length < 9 || length > in.remaining()) break;               //cut short
+            crc.reset();
+            crc.update(in.array(), in.position(), length);
+            if((int) crc.getValue() != check) break;                      //torn or corrupt
+            ByteBuffer record = ByteBuffer.wrap(in.array(), in.position(), length);
+            in.position(in.position() + length);
+            long number = record.getLong();
+            if(number > after){
+                apply(data, record);
+                applied++;
+            }
+            sequence = Math.max(sequence, number);
+            records++;
+            good = HEADER + in.position();
+        }
+        if(good < size){
+            System.err.println("Dropping " + (size - good) + " bytes of incomplete log from " + fileName);
+            channel.truncate(good);
+            channel.force(false);
+        }
+        channel.position(good);
+        return applied;
+    }
+
+    /**
+     * Applies one logged change
+     */
+    private static void apply(SimpleStackInterface<Profile> data, ByteBuffer record) throws IOException {
+        byte type = record.get();
+        if(type == CREATE){
+            String name = getString(record);
+            data.add(new Profile(name, getString(record)));
+        }
+        else if(type == EDIT){
+            Profile p = profile(data, record.getInt());
+            p.setName(getString(record));
+            p.setAbout(getString(record));
+        }
+        else if(type == FOLLOW){
+            Profile follower = profile(data, record.getInt());
+            follower.follow(profile(data, record.getInt()));
+        }
+        else if(type == UNFOLLOW){
+            profile(data, record.getInt()).unfollow();
+        }
+        else {
+            throw new IOException("Unknown log record type " + type);
+        }
+    }
+
+    /**
+     * Finds a profile by its place counting from the bottom of the list
+     */
+    private static Profile profile(SimpleStackInterface<Profile> data, int place) throws IOException {
+        Profile p = data.atPlace(place);
+        if(p == null) throw new IOException("Log refers to missing profile " + place);
+        return p;
+    }
+
+    private static String getString(ByteBuffer record){
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Logs a new profile being added to the top of the list
+     * @param name The profile's name
+     * @param about The profile's about me
+     * @throws IOException if the log can't be written
+     */
+    public synchronized void create(String name, String about) throws IOException {
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        byte[] a = about.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = start(CREATE, 8 + n.length + a.length);
+        record.putInt(n.length).put(n);
+        record.putInt(a.length).put(a);
+        finish(record);
+    }
+
+    /**
+     * Logs a profile's name and about me being changed
+     * @param place The profile's place counting from the bottom of the list
+     * @param name The new name
+     * @param about The new about me
+     * @throws IOException if the log can't be written
+     */
+    public synchronized void edit(int place, String name, String about) throws IOException {
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        byte[] a = about.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = start(EDIT, 12 + n.length + a.length);
+        record.putInt(place);
+        record.putInt(n.length).put(n);
+        record.putInt(a.length).put(a);
+        finish(record);
+    }
+
+    /**
+     * Logs one profile following another
+     * @param follower The follower's place counting from the bottom of the list
+     * @param followed The followed profile's place
+     * @throws IOException if the log can't be written
+     */
+    public synchronized void follow(int follower, int followed) throws IOException {
+        ByteBuffer record = start(FOLLOW, 8);
+        record.putInt(follower);
+        record.putInt(followed);
+        finish(record);
+    }
+
+    /**
+     * Logs a profile unfollowing its most recent follow
+     * @param place The profile's place counting from the bottom of the list
+     * @throws IOException if the log can't be written
+     */
+    public synchronized void unfollow(int place) throws IOException {
+        ByteBuffer record = start(UNFOLLOW, 4);
+        record.putInt(place);
+        finish(record);
+    }
+
+    /**
+     * Makes room for a record in the pending buffer and writes its number and type
+     * @param fields The bytes the record needs after its type
+     * @return The pending buffer, positioned for the fields
+     */
+    private ByteBuffer start(byte type, int fields) throws IOException {
+        int length = 9 + fields;
+        if(pending.remaining() < 8 + length){
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + 8 + length));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        recordStart = pending.position();
+        pending.putInt(length);
+        pending.putInt(0);                            //CRC, filled in by finish
+        pending.putLong(++sequence);
+        pending.put(type);
+        return pending;
+    }
+
+    /**
+     * Fills in the CRC of the record just written and syncs if the batch is full
+     */
+    private void finish(ByteBuffer record) throws IOException {
+        int payload = recordStart + 8;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), payload, record.position() - payload);
+        record.putInt(recordStart + 4, (int) crc.getValue());
+        pendingRecords++;
+        records++;
+        if(pendingRecords >= syncEvery || System.currentTimeMillis() - lastSync >= syncMillis) sync();
+    }
+
+    /**
+     * Writes every waiting record and forces it to disk
+     * @throws IOException if the log can't be written
+     */
+    public synchronized void sync() throws IOException {
+        if(pendingRecords > 0){
+            pending.flip();
+            while(pending.hasRemaining()) channel.write(pending);
+            pending.clear();
+            channel.force(false);
+            pendingRecords = 0;
+        }
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Empties the log once a snapshot holds everything in it
+     * @throws IOException if the log can't be written
+     */
+    public synchronized void truncate() throws IOException {
+        sync();
+        writeHeader();
+        records = 0;
+    }
+
+    /**
+     * Gets the number of the last record logged
+     * @return The sequence number, which a snapshot of the current list should store
+     */
+    public synchronized long sequence(){
+        return sequence;
+    }
+
+    /**
+     * Gets the number of records in the log since it was last emptied
+     * @return The number of records a restore would replay
+     */
+    public synchronized long records(){
+        return records;
+    }
+
+    /**
+     * Syncs any waiting records and closes the file
+     * @throws IOException if the log can't be written
+     */
+    public synchronized void close() throws IOException {
+        if(flusher != null) flusher.shutdown();
+        sync();
+        file.close();
+    }
+}
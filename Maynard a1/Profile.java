@@ -1,14 +1,43 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
- * A very basic social media profile
+ * A very basic social media profile. Each profile is its own lock: every method that reads
+ * or changes its fields is synchronized, so sessions working on different profiles never
+ * wait for each other, and follow's check and add happen as one step. No method holds one
+ * profile's lock while taking another's.
+ *
+ * Each profile also knows who follows it. follow and unfollow update the other profile's
+ * follower set while holding this profile's lock; the set is a concurrent one, so that needs
+ * no lock of the other profile's. Follower sets aren't saved with Java serialization; they
+ * are rebuilt from the follows as profiles are restored.
+ *
+ * A ProfileGraph hands out GraphProfiles, which keep nothing here and read its arrays instead.
  * @author Lenny Maynard
  */
 public class Profile implements ProfileInterface, Serializable {
 
+    private static final long serialVersionUID = 8053226877060666600L;    //matches saves made before it was pinned
+
     private String name;
     private String about;
-    private SimpleStack friends;
+    private SimpleStack<ProfileInterface> friends;
+    private transient MappedProfileStore store;    //where an unread profile comes from, null otherwise
+    private transient int id;                      //its number in the store or graph
+    private transient boolean textUnread;          //name and about are still in the store
+    private transient boolean followsUnread;       //follows are still in the store
+    private transient volatile Set<ProfileInterface> followers;     //made the first time it is needed
+
+    @SuppressWarnings("unchecked")            //Set.class can only name the raw type
+    private static final AtomicReferenceFieldUpdater<Profile, Set<ProfileInterface>> FOLLOWERS =
+            AtomicReferenceFieldUpdater.newUpdater(Profile.class, (Class<Set<ProfileInterface>>) (Class<?>) Set.class, "followers");
 
     /**
      * A no-args constructor that initializes all fields
@@ -16,7 +45,7 @@ public class Profile implements ProfileInterface, Serializable {
     public Profile(){
         name = "";
         about = "";
-        friends = new SimpleStack(10);
+        friends = new HashedSimpleStack<ProfileInterface>(10, true);
     }
 
     /**
@@ -28,22 +57,144 @@ public class Profile implements ProfileInterface, Serializable {
     public Profile(String n, String a){
         name = n;
         about = a;
-        friends = new SimpleStack(10);
+        friends = new HashedSimpleStack<ProfileInterface>(10, true);
+    }
+
+    /**
+     * A constructor for a profile in a MappedProfileStore that reads nothing until it is used
+     * @param store The store holding the profile
+     * @param id The profile's number in the store
+     */
+    Profile(MappedProfileStore store, int id){
+        this.store = store;
+        this.id = id;
+        textUnread = true;
+        followsUnread = true;
+    }
+
+    /**
+     * A constructor for a profile that keeps everything but its number somewhere else, like
+     * a GraphProfile
+     * @param id The profile's number where it is kept
+     */
+    Profile(int id){
+        this.id = id;
+    }
+
+    /**
+     * Reads the name and about me from the store, the first time they are needed
+     */
+    private synchronized void readText(){
+        if(!textUnread) return;
+        name = store.name(id);
+        about = store.about(id);
+        textUnread = false;
+    }
+
+    /**
+     * Reads the follows from the store, the first time they are needed. The followed
+     * profiles are handed out unread too.
+     */
+    private synchronized void readFollows(){
+        if(!followsUnread) return;
+        int[] ids = store.follows(id);
+        friends = new HashedSimpleStack<ProfileInterface>(Math.max(10, ids.length), true);
+        for(int other : ids) friends.add(store.profile(other));      //oldest first, so the newest ends on top
+        followsUnread = false;
+    }
+
+    /**
+     * Gets the set of profiles following this one, making it the first time. A profile from
+     * a store starts with the followers the store has for it. If two sessions make it at once
+     * only one set is kept, and nothing is added to either before then.
+     */
+    private Set<ProfileInterface> followerSet(){
+        Set<ProfileInterface> set = followers;
+        if(set != null) return set;
+        set = ConcurrentHashMap.newKeySet();
+        if(store != null){
+            for(int other : store.followers(id)) set.add(store.profile(other));
+        }
+        if(FOLLOWERS.compareAndSet(this, null, set)) return set;
+        return followers;                     //another session's set won
+    }
+
+    /**
+     * Gets everyone following this profile, without copying them. The set can be read while
+     * other sessions follow and unfollow, and may or may not show their changes.
+     * @return A read-only set of the profiles following this one
+     */
+    public Set<ProfileInterface> followers(){
+        return Collections.unmodifiableSet(followerSet());
+    }
+
+    /**
+     * Counts the profiles following this one, without scanning anyone's follows
+     * @return The number of followers
+     */
+    public int followerCount(){
+        return followerSet().size();
+    }
+
+    /**
+     * Checks whether this profile was handed out by a store
+     * @param from The store
+     * @return true if it came from that store
+     */
+    boolean isFrom(MappedProfileStore from){
+        return store != null && store == from;
+    }
+
+    /**
+     * Gets this profile's number in the store or graph it came from
+     * @return The number
+     */
+    int id(){
+        return id;
+    }
+
+    /**
+     * Checks whether a store profile's name and about are still only in the store
+     * @return true if they haven't been read
+     */
+    synchronized boolean textUnread(){
+        return textUnread;
+    }
+
+    /**
+     * Checks whether a store profile's follows are still only in the store
+     * @return true if they haven't been read
+     */
+    synchronized boolean followsUnread(){
+        return followsUnread;
+    }
+
+    /**
+     * Gets the follower set without making it, so a store can tell whether its own list of
+     * this profile's followers still holds
+     * @return The set, or null if it hasn't been made
+     */
+    Set<ProfileInterface> followersMade(){
+        return followers;
     }
 
     /**
      * Sets the profile's name
      * @param name The new name
      */
-    public void setName(String name){
+    public synchronized void setName(String name){
+        readText();                       //so a later read doesn't overwrite it
+        String old = this.name;
         this.name = name;
+        if(ProfileIndex.shared != null) ProfileIndex.shared.renamed(this, old, name);     //keep name searches right
     }
 
     /**
      * Gets the profile's name
      * @return The name
      */
-    public String getName(){
+    public synchronized String getName(){
+        readText();
         return name;
     }
 
@@ -51,7 +202,8 @@ public class Profile implements ProfileInterface, Serializable {
      * Sets the profile's "about me" blurb
      * @param about The new blurb
      */
-    public void setAbout(String about){
+    public synchronized void setAbout(String about){
+        readText();
         this.about = about;
     }
 
@@ -59,7 +211,8 @@ public class Profile implements ProfileInterface, Serializable {
      * Gets the profile's "about me" blurb
      * @return The blurb
      */
-    public String getAbout(){
+    public synchronized String getAbout(){
+        readText();
         return about;
     }
 
@@ -67,11 +220,15 @@ public class Profile implements ProfileInterface, Serializable {
      * Adds another profile to this profile's following stack. The most obvious failure is when this
      * profile already follows the maximum number of other profiles. Although the stack may be
      * capable of holding duplicate items, this method should also return false if this profile is
-     * already following other.
+     * already following other. The check and the add happen under this profile's lock, so two
+     * sessions can't both add the same follow. A profile outside a graph can't follow a profile
+     * in one.
      * @param other The profile to follow
      * @return True if successful, false otherwise
      */
-    public boolean follow(ProfileInterface other){
+    public synchronized boolean follow(ProfileInterface other){
+        if(other instanceof GraphProfile) return false;
+        readFollows();
         boolean check;
         if(friends.contains(other)){          //if this person is already following the given profile return false
             check = false;
@@ -79,6 +236,8 @@ public class Profile implements ProfileInterface, Serializable {
         else{
             check = friends.add(other);       //add the given profile to the friend stack
         }
+        if(check && other instanceof Profile) ((Profile) other).followerSet().add(this);
+        if(check) RecommendationCache.shared.changed(this);     //recommendations that read this profile's follows are stale
         return check;
     }
 
@@ -86,8 +245,13 @@ public class Profile implements ProfileInterface, Serializable {
      * Removes the most recently-followed profile from this profile's following stack
      * @return The profile that was unfollowed
      */
-    public ProfileInterface unfollow(){
-        ProfileInterface person = (ProfileInterface)friends.remove();
+    public synchronized ProfileInterface unfollow(){
+        readFollows();
+        ProfileInterface person = friends.remove();
+        if(person instanceof Profile && !friends.contains(person)){    //older saves may hold a follow twice
+            ((Profile) person).followerSet().remove(this);
+        }
+        if(person != null) RecommendationCache.shared.changed(this);
         return person;
     }
 
@@ -96,27 +260,65 @@ public class Profile implements ProfileInterface, Serializable {
      * @param howMany The number of profiles to return
      * @return An array of size howMany, containing the most recently-followed profiles
      */
-    public ProfileInterface[] following(int howMany){
+    public synchronized ProfileInterface[] following(int howMany){
         ProfileInterface[] people = new ProfileInterface[howMany];
+        readFollows();
         if(howMany>friends.size()) howMany = friends.size();         //if user asks for more friends than there are, only
                                                                      //return how many there are to avoid NullPointerException
-        Object[] back = friends.topItems(howMany);
-        for(int i = 0; i < howMany; i++){                       //put profiles in a ProfileInterface[] to return
-            people[i] = (ProfileInterface)back[i];
+        for(int i = 0; i < howMany; i++){                       //read profiles straight off the stack into the array to return
+            people[i] = friends.get(i);
         }
         return people;
     }
 
     /**
-     * Recommend a profile for this profile to follow. Returns the most recently added friend
-     * of this profile's most recently added friend
+     * Gets everyone this profile follows. The list is copied under this profile's lock, so it
+     * can be read while other sessions follow and unfollow.
+     * @return The followed profiles, most recently-followed first
+     */
+    public synchronized List<ProfileInterface> followingView(){
+        readFollows();
+        return new ArrayList<ProfileInterface>(friends.topView(Integer.MAX_VALUE));
+    }
+
+    /**
+     * Recommend a profile for this profile to follow. Not synchronized, since it reads other
+     * profiles' follows, each under its own lock. Returns the friend of a friend followed
+     * by the most of this profile's friends, leaving out this profile and anyone it already
+     * follows. Ties go to the most recently added friend's most recent friend.
      * @return The profile to suggest, or null if no suitable profile is found.
      */
     public ProfileInterface recommend(){
-        Object[] receive = friends.topItems(1);            //get this profile's top friend
-        Profile yours = (Profile)receive[0];
-        ProfileInterface[] theirs = yours.following(1);    //get the new profile's top friend
-        ProfileInterface recommended = theirs[0];
-        return recommended;
+        List<ProfileInterface> best = RecommendationCache.shared.recommend(this, 1, 2);
+        if(best.isEmpty()) return null;                    //nobody this profile's friends follow is new
+        return best.get(0);
+    }
+
+    /**
+     * Recommends several profiles for this profile to follow, best first. Answers are cached
+     * until this profile or someone it reads from follows or unfollows someone.
+     * @param howMany The most profiles to return
+     * @param hops 2 to only look at friends of friends, 3 to look one step further
+     * @return Up to howMany profiles to suggest
+     */
+    public List<ProfileInterface> recommend(int howMany, int hops){
+        return RecommendationCache.shared.recommend(this, howMany, hops);
+    }
+
+    /**
+     * Restores the profile. Saves made before follows were indexed hold a plain SimpleStack,
+     * so it is copied into a HashedSimpleStack to keep follow's duplicate check fast. Saves
+     * made before stacks could grow are capped at 10 follows, so the cap is lifted. This
+     * profile is then added to the follower sets of everyone it follows, which works whether
+     * or not they have been restored yet.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if(!(friends instanceof HashedSimpleStack)) friends = new HashedSimpleStack<ProfileInterface>(friends);
+        friends.setGrowable(true);
+        for(int x = 0; x < friends.size(); x++){
+            ProfileInterface other = friends.get(x);
+            if(other instanceof Profile) ((Profile) other).followerSet().add(this);
+        }
     }
 }
@@ -0,0 +1,626 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A profile list that keeps the whole follow graph in int arrays instead of objects. Every
+ * profile gets a number, its place counting from the bottom of the list, and each profile's
+ * follows and followers are plain int arrays of those numbers. An edge costs 4 bytes each way
+ * instead of an array slot plus hash entries on both ends, and walking the follows of a
+ * friend of a friend reads one array straight through. Once a profile's follows or followers
+ * are too long to scan, a table of where each number sits in them is kept too, so follow's
+ * duplicate check and unfollow's follower removal don't grow with a popular profile.
+ *
+ * get hands out a GraphProfile that holds nothing but the graph and its number, made the first
+ * time that number is asked for and the same object for as long as anything holds it; every
+ * method on it reads or changes the arrays here. The graph only keeps weak references to
+ * them, so listing or ranking every profile doesn't leave an object behind for each one.
+ * Profiles can only be added, never taken off, since other profiles' arrays name them by
+ * number.
+ *
+ * Profiles are kept in fixed-size segments that never move, like ProfileRegistry. Each
+ * profile's arrays are guarded by one of STRIPES locks picked by its number. A follow
+ * changes the follower's follows and the followed profile's followers, so it takes both of
+ * their locks, lower stripe first.
+ * @author Lenny Maynard
+ */
+public class ProfileGraph implements SimpleStackInterface<Profile> {
+
+    static final int SEGMENT = 1024;          //profiles per segment
+    static final int STRIPES = 64;            //locks shared out between the profiles
+    static final int SCAN = 16;               //longest follow or follower array searched without a table
+    static final int[] NONE = new int[0];
+
+    /**
+     * The arrays for SEGMENT profiles
+     */
+    static class Segment {
+        final String[] names = new String[SEGMENT];
+        final String[] abouts = new String[SEGMENT];
+        final int[][] follows = new int[SEGMENT][];       //oldest follow first
+        final int[] followCount = new int[SEGMENT];
+        final int[][] followers = new int[SEGMENT][];     //in no particular order
+        final int[] followerCount = new int[SEGMENT];
+        final Places[] followPlaces = new Places[SEGMENT];       //null until the follows are longer than SCAN
+        final Places[] followerPlaces = new Places[SEGMENT];     //null until the followers are longer than SCAN
+    }
+
+    /**
+     * An open addressing table from profile numbers to their places in one follow or follower
+     * array, like Scores' table. Removing a number moves later entries of its run back into
+     * the gap, so a search never stops early at an empty slot.
+     */
+    static class Places {
+        int[] keys;                           //profile number + 1, 0 for an empty slot
+        int[] places;
+        int size;
+
+        /**
+         * Makes a table of the first count numbers in an array
+         */
+        Places(int[] ids, int count){
+            int capacity = 16;
+            while(capacity < count * 2) capacity *= 2;
+            keys = new int[capacity];
+            places = new int[capacity];
+            for(int x = 0; x < count; x++) put(ids[x], x);
+        }
+
+        /**
+         * Gets a number's place, or -1 if it isn't in the array
+         */
+        int get(int id){
+            int mask = keys.length - 1;
+            for(int slot = hash(id) & mask; keys[slot] != 0; slot = (slot + 1) & mask){
+                if(keys[slot] == id + 1) return places[slot];
+            }
+            return -1;
+        }
+
+        /**
+         * Sets a number's place, adding it if it isn't there yet
+         */
+        void put(int id, int place){
+            int mask = keys.length - 1;
+            int slot = hash(id) & mask;
+            for(; keys[slot] != 0; slot = (slot + 1) & mask){
+                if(keys[slot] == id + 1){
+                    places[slot] = place;
+                    return;
+                }
+            }
+            keys[slot] = id + 1;
+            places[slot] = place;
+            if(++size * 2 > keys.length) rehash();          //keep the table at most half full
+        }
+
+        /**
+         * Takes a number out of the table
+         */
+        void remove(int id){
+            int mask = keys.length - 1;
+            int slot = hash(id) & mask;
+            while(keys[slot] != id + 1){
+                if(keys[slot] == 0) return;
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = 0;
+            size--;
+            for(int next = (slot + 1) & mask; keys[next] != 0; next = (next + 1) & mask){
+                int home = hash(keys[next] - 1) & mask;
+                if(((next - home) & mask) < ((next - slot) & mask)) continue;     //the gap is before where it starts looking
+                keys[slot] = keys[next];
+                places[slot] = places[next];
+                keys[next] = 0;
+                slot = next;
+            }
+        }
+
+        private void rehash(){
+            int[] oldKeys = keys, oldPlaces = places;
+            keys = new int[oldKeys.length * 2];
+            places = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for(int x = 0; x < oldKeys.length; x++){
+                if(oldKeys[x] == 0) continue;
+                int slot = hash(oldKeys[x] - 1) & mask;
+                while(keys[slot] != 0) slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[x];
+                places[slot] = oldPlaces[x];
+            }
+        }
+    }
+
+    /**
+     * A weak reference to a handed out profile that remembers its number, so it can be
+     * cleared out of views once the profile is collected
+     */
+    static class View extends WeakReference<Profile> {
+        final int id;
+
+        View(Profile profile, int id, ReferenceQueue<Profile> queue){
+            super(profile, queue);
+            this.id = id;
+        }
+    }
+
+    private volatile Segment[] segments = new Segment[1];
+    private volatile int size;
+    private final Object[] locks = new Object[STRIPES];
+    private final ConcurrentHashMap<Integer, View> views = new ConcurrentHashMap<Integer, View>();    //profiles handed out and still held
+    private final ReferenceQueue<Profile> collected = new ReferenceQueue<Profile>();
+
+    /**
+     * A no-arg constructor for an empty graph
+     */
+    public ProfileGraph(){
+        for(int x = 0; x < STRIPES; x++) locks[x] = new Object();
+    }
+
+    private Segment segment(int id){
+        return segments[id / SEGMENT];
+    }
+
+    private Object lock(int id){
+        return locks[id % STRIPES];
+    }
+
+    private void check(int id){
+        if(id < 0 || id >= size) throw new IndexOutOfBoundsException("No profile " + id + " in the graph");
+    }
+
+    /**
+     * Adds a profile with a name and about me and no follows
+     * @param name The profile's name
+     * @param about The profile's about me
+     * @return The new profile's number
+     */
+    public synchronized int add(String name, String about){
+        int id = size;
+        Segment[] segs = segments;
+        if(id / SEGMENT == segs.length){
+            Segment[] more = new Segment[segs.length * 2];      //only the segment table is copied
+            System.arraycopy(segs, 0, more, 0, segs.length);
+            segs = more;
+        }
+        if(segs[id / SEGMENT] == null) segs[id / SEGMENT] = new Segment();
+        Segment s = segs[id / SEGMENT];
+        s.names[id % SEGMENT] = name;
+        s.abouts[id % SEGMENT] = about;
+        s.follows[id % SEGMENT] = NONE;
+        s.followers[id % SEGMENT] = NONE;
+        segments = segs;
+        size = id + 1;                        //publishes the profile to readers
+        return id;
+    }
+
+    /**
+     * Adds a profile to the top of the list. Only its name and about me are copied in; the
+     * profile in the list from then on is the one get and atPlace hand out.
+     * @param item The profile to be added
+     * @return True, since the list grows as needed
+     */
+    public boolean add(Profile item){
+        add(item.getName(), item.getAbout());
+        return true;
+    }
+
+    /**
+     * Profiles can't be taken out of a graph, since other profiles' arrays name them by number
+     * @return null
+     */
+    public Profile remove(){
+        return null;
+    }
+
+    /**
+     * Gets the profile with a number, making it if nothing holds one. Anyone comparing or
+     * locking profiles holds the ones they use, so they always get the same object.
+     * @param id The profile's number
+     * @return The profile, the same object while any is held
+     */
+    Profile profile(int id){
+        check(id);
+        for(View gone; (gone = (View) collected.poll()) != null; ) views.remove(gone.id, gone);
+        View view = views.get(id);
+        Profile p = view == null ? null : view.get();
+        while(p == null){
+            GraphProfile made = new GraphProfile(this, id);
+            view = views.compute(id, (key, old) -> old != null && old.get() != null ? old : new View(made, key, collected));    //one profile even if sessions race
+            p = view.get();
+        }
+        return p;
+    }
+
+    String name(int id){
+        check(id);
+        synchronized(lock(id)){
+            return segment(id).names[id % SEGMENT];
+        }
+    }
+
+    void setName(int id, String name){
+        check(id);
+        synchronized(lock(id)){
+            segment(id).names[id % SEGMENT] = name;
+        }
+    }
+
+    String about(int id){
+        check(id);
+        synchronized(lock(id)){
+            return segment(id).abouts[id % SEGMENT];
+        }
+    }
+
+    void setAbout(int id, String about){
+        check(id);
+        synchronized(lock(id)){
+            segment(id).abouts[id % SEGMENT] = about;
+        }
+    }
+
+    /**
+     * Copies the numbers of the profiles a profile follows
+     * @param id The profile's number
+     * @return The numbers, oldest follow first
+     */
+    int[] follows(int id){
+        check(id);
+        Segment s = segment(id);
+        synchronized(lock(id)){
+            return Arrays.copyOf(s.follows[id % SEGMENT], s.followCount[id % SEGMENT]);
+        }
+    }
+
+    /**
+     * Copies the numbers of the profiles following a profile
+     * @param id The profile's number
+     * @return The numbers, in no particular order
+     */
+    int[] followers(int id){
+        check(id);
+        Segment s = segment(id);
+        synchronized(lock(id)){
+            return Arrays.copyOf(s.followers[id % SEGMENT], s.followerCount[id % SEGMENT]);
+        }
+    }
+
+    int followerCount(int id){
+        check(id);
+        synchronized(lock(id)){
+            return segment(id).followerCount[id % SEGMENT];
+        }
+    }
+
+    /**
+     * Makes one profile follow another, unless it already does
+     * @param from The follower's number
+     * @param to The followed profile's number
+     * @return True if the follow was added, false if it was already there
+     */
+    boolean follow(int from, int to){
+        check(from);
+        check(to);
+        Object first = lock(Math.min(from % STRIPES, to % STRIPES));
+        Object second = lock(Math.max(from % STRIPES, to % STRIPES));
+        synchronized(first){
+            synchronized(second){
+                Segment f = segment(from);
+                int at = from % SEGMENT;
+                int count = f.followCount[at];
+                if(find(f.follows[at], count, f.followPlaces[at], to) >= 0) return false;
+                f.follows[at] = append(f.follows[at], count, to);
+                f.followPlaces[at] = placed(f.followPlaces[at], f.follows[at], count, to);
+                f.followCount[at]++;
+                Segment t = segment(to);
+                int tAt = to % SEGMENT;
+                count = t.followerCount[tAt];
+                t.followers[tAt] = append(t.followers[tAt], count, from);
+                t.followerPlaces[tAt] = placed(t.followerPlaces[tAt], t.followers[tAt], count, from);
+                t.followerCount[tAt]++;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Makes a profile unfollow its most recent follow
+     * @param from The profile's number
+     * @return The number of the profile it stopped following, or -1 if it followed nobody
+     */
+    int unfollow(int from){
+        check(from);
+        Segment f = segment(from);
+        while(true){
+            int to;
+            synchronized(lock(from)){
+                int count = f.followCount[from % SEGMENT];
+                if(count == 0) return -1;
+                to = f.follows[from % SEGMENT][count - 1];
+            }
+            Object first = lock(Math.min(from % STRIPES, to % STRIPES));
+            Object second = lock(Math.max(from % STRIPES, to % STRIPES));
+            synchronized(first){
+                synchronized(second){
+                    int count = f.followCount[from % SEGMENT];
+                    if(count == 0 || f.follows[from % SEGMENT][count - 1] != to) continue;     //changed while unlocked, look again
+                    f.followCount[from % SEGMENT]--;
+                    if(f.followPlaces[from % SEGMENT] != null) f.followPlaces[from % SEGMENT].remove(to);
+                    Segment t = segment(to);
+                    int tAt = to % SEGMENT;
+                    int[] list = t.followers[tAt];
+                    int last = t.followerCount[tAt] - 1;
+                    Places places = t.followerPlaces[tAt];
+                    int x = find(list, last + 1, places, from);
+                    if(x >= 0){
+                        list[x] = list[last];                 //order doesn't matter, so fill the gap from the end
+                        if(places != null){
+                            places.remove(from);
+                            if(x != last) places.put(list[x], x);
+                        }
+                        t.followerCount[tAt]--;
+                    }
+                    return to;
+                }
+            }
+        }
+    }
+
+    private static int hash(int id){
+        return id * 0x9E3779B9;                   //spreads nearby numbers across a table
+    }
+
+    /**
+     * Finds a number's place in a follow or follower array, from its table if it has one
+     * @return The place, or -1 if it isn't there
+     */
+    private static int find(int[] list, int count, Places places, int id){
+        if(places != null) return places.get(id);
+        for(int x = 0; x < count; x++){
+            if(list[x] == id) return x;               //a short straight scan of ints, no hashing
+        }
+        return -1;
+    }
+
+    /**
+     * Notes that a number was put at a place in an array, making the array's table once it
+     * is longer than SCAN
+     * @return The table, or null if the array is still short enough to scan
+     */
+    private static Places placed(Places places, int[] list, int place, int id){
+        if(places != null) places.put(id, place);
+        else if(place + 1 > SCAN) places = new Places(list, place + 1);
+        return places;
+    }
+
+    /**
+     * Adds a number to the end of an array, doubling it when full
+     */
+    private static int[] append(int[] list, int count, int value){
+        if(count == list.length) list = Arrays.copyOf(list, Math.max(4, count * 2));
+        list[count] = value;
+        return list;
+    }
+
+    /**
+     * Finds the best profiles for a profile to follow, the same way and in the same order as
+     * FriendRecommender, but scoring numbers in flat arrays instead of profiles in maps
+     * @param id The profile's number
+     * @param howMany The most suggestions to return
+     * @param hops 2 to only look at friends of friends, 3 to look one step further
+     * @param read Filled with every profile whose follows were read, or null
+     * @return Up to howMany profiles, best first
+     */
+    List<ProfileInterface> recommend(int id, int howMany, int hops, List<ProfileInterface> read){
+        Scores scores = new Scores();
+        int[] mine = follows(id);
+        if(read != null){
+            read.add(profile(id));
+            for(int x = mine.length - 1; x >= 0; x--) read.add(profile(mine[x]));
+        }
+
+        //two hops: everyone followed by someone this profile follows, most recent follows first
+        for(int x = mine.length - 1; x >= 0; x--){
+            int[] next = follows(mine[x]);
+            for(int y = next.length - 1; y >= 0; y--){
+                if(next[y] == id) continue;
+                int e = scores.find(next[y]);         //may grow the arrays, so look them up after
+                scores.mutual[e]++;
+            }
+        }
+
+        //three hops: spread each friend of a friend's path count one step further
+        int reached = scores.size;
+        if(hops >= 3){
+            for(int e = 0; e < reached; e++){
+                if(read != null) read.add(profile(scores.node[e]));
+                int[] next = follows(scores.node[e]);
+                for(int y = next.length - 1; y >= 0; y--){
+                    if(next[y] == id) continue;
+                    int f = scores.find(next[y]);
+                    scores.distant[f] += scores.mutual[e];
+                }
+            }
+        }
+
+        boolean[] followed = new boolean[scores.size];
+        for(int friend : mine){
+            int e = scores.get(friend);
+            if(e >= 0) followed[e] = true;                    //already followed
+        }
+
+        //keep the best howMany in a heap with the worst on top
+        PriorityQueue<Integer> best = new PriorityQueue<Integer>(Math.max(1, howMany + 1), scores::compare);
+        for(int e = 0; e < scores.size && howMany > 0; e++){
+            if(followed[e]) continue;
+            if(best.size() < howMany){
+                best.add(e);
+            }
+            else if(scores.compare(e, best.peek()) > 0){
+                best.poll();
+                best.add(e);
+            }
+        }
+        ProfileInterface[] result = new ProfileInterface[best.size()];
+        for(int x = result.length - 1; x >= 0; x--) result[x] = profile(scores.node[best.poll()]);
+        return new ArrayList<ProfileInterface>(Arrays.asList(result));
+    }
+
+    /**
+     * Candidates being scored, numbered in the order they were first reached. An open
+     * addressing table maps a profile's number to its candidate number.
+     */
+    static class Scores {
+        int[] table = new int[64];            //candidate number + 1, 0 for an empty slot
+        int[] node = new int[32];
+        int[] mutual = new int[32];
+        long[] distant = new long[32];
+        int size;
+
+        /**
+         * Gets a profile's candidate number, or -1 if it hasn't been reached
+         */
+        int get(int id){
+            int mask = table.length - 1;
+            for(int slot = hash(id) & mask; table[slot] != 0; slot = (slot + 1) & mask){
+                if(node[table[slot] - 1] == id) return table[slot] - 1;
+            }
+            return -1;
+        }
+
+        /**
+         * Gets a profile's candidate number, making it a candidate if it isn't one yet
+         */
+        int find(int id){
+            int mask = table.length - 1;
+            int slot = hash(id) & mask;
+            for(; table[slot] != 0; slot = (slot + 1) & mask){
+                if(node[table[slot] - 1] == id) return table[slot] - 1;
+            }
+            if(size == node.length){
+                node = Arrays.copyOf(node, size * 2);
+                mutual = Arrays.copyOf(mutual, size * 2);
+                distant = Arrays.copyOf(distant, size * 2);
+            }
+            node[size] = id;
+            table[slot] = ++size;
+            if(size * 2 > table.length) rehash();           //keep the table at most half full
+            return size - 1;
+        }
+
+        private void rehash(){
+            table = new int[table.length * 2];
+            int mask = table.length - 1;
+            for(int e = 0; e < size; e++){
+                int slot = hash(node[e]) & mask;
+                while(table[slot] != 0) slot = (slot + 1) & mask;
+                table[slot] = e + 1;
+            }
+        }
+
+        /**
+         * Compares two candidates like FriendRecommender.Candidate.compare
+         * @return Less than 0 if a is a worse suggestion than b
+         */
+        int compare(int a, int b){
+            if(mutual[a] != mutual[b]) return Integer.compare(mutual[a], mutual[b]);
+            if(distant[a] != distant[b]) return Long.compare(distant[a], distant[b]);
+            return Integer.compare(b, a);         //reached later is worse
+        }
+    }
+
+    /**
+     * Returns an array of the top profiles, most recently-added first
+     * @param howMany The number of profiles to return
+     * @return An array of the profiles, or null if the list does not contain enough
+     */
+    public Object[] topItems(int howMany){
+        int top = size;
+        if(howMany > top) return null;
+        Object[] tops = new Object[howMany];
+        for(int x = 0; x < howMany; x++) tops[x] = profile(top - 1 - x);
+        return tops;
+    }
+
+    /**
+     * Gets a profile by its place from the top of the list
+     * @param i The place, 0 for the most recently-added profile
+     * @return The profile, or null if the list does not contain that many
+     */
+    public Profile get(int i){
+        int top = size;
+        if(i < 0 || i >= top) return null;
+        return profile(top - 1 - i);
+    }
+
+    /**
+     * Gets a profile by its place counting from the bottom, which is also its number
+     * @param place The place, 0 for the first profile added
+     * @return The profile, or null if there is no such place
+     */
+    public Profile atPlace(int place){
+        if(place < 0 || place >= size) return null;
+        return profile(place);
+    }
+
+    /**
+     * Returns a read-only list of the top profiles, most recently-added first
+     * @param howMany The most profiles the list should hold
+     * @return A list of up to howMany of the most recently-added profiles
+     */
+    public List<Profile> topView(int howMany){
+        return new TopView(howMany);
+    }
+
+    /**
+     * The list returned by topView
+     */
+    private class TopView extends AbstractList<Profile> implements RandomAccess {
+        final int howMany;
+
+        TopView(int howMany){
+            this.howMany = howMany;
+        }
+
+        public Profile get(int i){
+            if(i < 0 || i >= size()) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+            return ProfileGraph.this.get(i);
+        }
+
+        public int size(){
+            return Math.max(0, Math.min(howMany, size));
+        }
+    }
+
+    /**
+     * Determines if the list contains a profile, without looking at any others
+     * @param item The profile in question
+     * @return True if the profile is on the list, false otherwise
+     */
+    public boolean contains(Profile item){
+        return item instanceof GraphProfile && ((GraphProfile) item).isFrom(this) && item.id() < size;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    /**
+     * The list grows as needed, so it is never full
+     * @return False
+     */
+    public boolean isFull(){
+        return false;
+    }
+
+    public int size(){
+        return size;
+    }
+}
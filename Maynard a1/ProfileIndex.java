@@ -0,0 +1,152 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Finds profiles in the client's list by name without scanning it. Names are matched ignoring
+ * case. A hash map answers exact lookups and a sorted map answers "names starting with"
+ * searches; both map a name to the places of the profiles with it, counting from the bottom of
+ * the list, which don't change since profiles are never taken off the list.
+ *
+ * Building the index reads every name once. After that Client tells it about new profiles,
+ * and Profile.setName tells the shared index about renames.
+ *
+ * Searches take no lock, since both maps and the lists in them can be read while they
+ * change. Changes take the index's lock, and never lock a profile while holding it, since
+ * setName calls in with its profile locked; added locks the profile first the same way.
+ * @author Lenny Maynard
+ */
+public class ProfileIndex {
+
+    /**
+     * The index Profile.setName keeps up to date, or null before Client builds one
+     */
+    static volatile ProfileIndex shared;
+
+    private final SimpleStackInterface<Profile> data;
+    private final ConcurrentHashMap<String, List<Integer>> exact = new ConcurrentHashMap<String, List<Integer>>();
+    private final ConcurrentSkipListMap<String, List<Integer>> sorted = new ConcurrentSkipListMap<String, List<Integer>>();
+
+    /**
+     * Indexes every profile on a list
+     * @param data The client's profile list
+     */
+    public ProfileIndex(SimpleStackInterface<Profile> data){
+        this.data = data;
+        for(int place = 0; place < data.size(); place++) put(key(name(place)), place);
+    }
+
+    /**
+     * Reads the name at a place, from the backend's own name table when it has one so that
+     * building the index makes no profiles
+     */
+    private String name(int place){
+        if(data instanceof MappedProfileStore) return ((MappedProfileStore) data).nameAt(place);
+        if(data instanceof ProfileGraph) return ((ProfileGraph) data).name(place);
+        return profile(place).getName();
+    }
+
+    private static String key(String name){
+        return name == null ? "" : name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Gets a profile by its place counting from the bottom of the list
+     * @param place The place
+     * @return The profile
+     */
+    public Profile profile(int place){
+        return data.atPlace(place);
+    }
+
+    private synchronized void put(String key, int place){
+        List<Integer> places = exact.get(key);
+        if(places == null){
+            places = new CopyOnWriteArrayList<Integer>();
+            exact.put(key, places);
+            sorted.put(key, places);          //both maps share the list
+        }
+        places.add(place);
+    }
+
+    /**
+     * Indexes a profile that was just added to the list
+     * @param profile The new profile
+     * @param place Its place counting from the bottom of the list
+     */
+    public void added(Profile profile, int place){
+        synchronized(profile){                      //so a rename can't land between reading the name and indexing it
+            put(key(profile.getName()), place);
+        }
+    }
+
+    /**
+     * Moves a profile from its old name to its new one. Profiles that aren't on the list are
+     * ignored.
+     * @param profile The renamed profile
+     * @param oldName Its name before
+     * @param newName Its name now
+     */
+    public synchronized void renamed(Profile profile, String oldName, String newName){
+        String oldKey = key(oldName);
+        String newKey = key(newName);
+        if(oldKey.equals(newKey)) return;
+        List<Integer> places = exact.get(oldKey);
+        if(places == null) return;
+        for(int x = 0; x < places.size(); x++){
+            int place = places.get(x);
+            if(profile(place) != profile) continue;
+            places.remove(x);
+            if(places.isEmpty()){
+                exact.remove(oldKey);
+                sorted.remove(oldKey);
+            }
+            put(newKey, place);
+            return;
+        }
+    }
+
+    /**
+     * Finds the profiles with a name, ignoring case
+     * @param name The name
+     * @return Their places counting from the bottom of the list, oldest first
+     */
+    public List<Integer> find(String name){
+        List<Integer> places = exact.get(key(name));
+        return places == null ? new ArrayList<Integer>() : new ArrayList<Integer>(places);
+    }
+
+    /**
+     * Finds the profiles whose names start with some text, ignoring case
+     * @param prefix The start of the name
+     * @param limit The most places to return
+     * @return Their places counting from the bottom of the list, in name order
+     */
+    public List<Integer> findPrefix(String prefix, int limit){
+        String from = key(prefix);
+        List<Integer> result = new ArrayList<Integer>();
+        for(Map.Entry<String, List<Integer>> entry : sorted.subMap(from, true, from + Character.MAX_VALUE, true).entrySet()){
+            for(int place : entry.getValue()){
+                if(result.size() == limit) return result;
+                result.add(place);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counts the profiles whose names start with some text, ignoring case
+     * @param prefix The start of the name
+     * @return The number of profiles
+     */
+    public int countPrefix(String prefix){
+        String from = key(prefix);
+        int count = 0;
+        for(List<Integer> places : sorted.subMap(from, true, from + Character.MAX_VALUE, true).values()) count += places.size();
+        return count;
+    }
+}
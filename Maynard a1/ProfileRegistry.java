@@ -0,0 +1,162 @@
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A profile list that many sessions can use at once. Profiles are kept bottom first in
+ * fixed-size segments that never move once made, so reads take no lock at all: a reader
+ * looks at size, then at the slots below it. Adds and removes take the registry's own lock,
+ * only against each other, and a new profile is put in its slot before size counts it, so a
+ * reader never sees an empty slot.
+ *
+ * Places counted from the bottom never change while profiles are only added, which is how
+ * the log and the name index name profiles. Synchronizing on the registry holds off other
+ * adds, so a caller can add and then read its profile's place.
+ * @author Lenny Maynard
+ */
+public class ProfileRegistry implements SimpleStackInterface<Profile> {
+
+    static final int SEGMENT = 1024;          //profiles per segment
+
+    private volatile Profile[][] segments = new Profile[1][];
+    private volatile int size;
+
+    /**
+     * A no-arg constructor for an empty registry
+     */
+    public ProfileRegistry(){
+    }
+
+    /**
+     * A constructor that copies another list, keeping its order
+     * @param other The list to copy
+     */
+    public ProfileRegistry(SimpleStackInterface<Profile> other){
+        for(int x = other.size() - 1; x >= 0; x--) add(other.get(x));     //bottom first, so the top stays on top
+    }
+
+    /**
+     * Adds a new profile to the top of the list
+     * @param item The profile to be added
+     * @return True, since the list grows as needed
+     */
+    public synchronized boolean add(Profile item){
+        int at = size;
+        Profile[][] segs = segments;
+        if(at / SEGMENT == segs.length){
+            Profile[][] more = new Profile[segs.length * 2][];      //only the segment table is copied
+            System.arraycopy(segs, 0, more, 0, segs.length);
+            segs = more;
+        }
+        if(segs[at / SEGMENT] == null) segs[at / SEGMENT] = new Profile[SEGMENT];
+        segs[at / SEGMENT][at % SEGMENT] = item;
+        segments = segs;
+        size = at + 1;                        //publishes the slot to readers
+        return true;
+    }
+
+    /**
+     * Removes the top profile
+     * @return The profile that is removed, or null if the list is empty
+     */
+    public synchronized Profile remove(){
+        int at = size - 1;
+        if(at < 0) return null;
+        Profile hold = segments[at / SEGMENT][at % SEGMENT];
+        size = at;                            //readers stop looking at the slot before it is cleared
+        segments[at / SEGMENT][at % SEGMENT] = null;
+        return hold;
+    }
+
+    /**
+     * Gets a profile by its place counting from the bottom, without locking
+     * @param place The place, 0 for the first profile added
+     * @return The profile, or null if there is no such place
+     */
+    public Profile atPlace(int place){
+        if(place < 0 || place >= size) return null;
+        return segments[place / SEGMENT][place % SEGMENT];
+    }
+
+    /**
+     * Returns an array of the top profiles, most recently-added first
+     * @param howMany The number of profiles to return
+     * @return An array of the profiles, or null if the list does not contain enough
+     */
+    public Object[] topItems(int howMany){
+        int top = size;
+        if(howMany > top) return null;
+        Object[] tops = new Object[howMany];
+        for(int x = 0; x < howMany; x++) tops[x] = atPlace(top - 1 - x);
+        return tops;
+    }
+
+    /**
+     * Gets a profile by its place from the top of the list, without locking
+     * @param i The place, 0 for the most recently-added profile
+     * @return The profile, or null if the list does not contain that many
+     */
+    public Profile get(int i){
+        int top = size;
+        if(i < 0 || i >= top) return null;
+        return atPlace(top - 1 - i);
+    }
+
+    /**
+     * Returns a read-only list of the top profiles, most recently-added first
+     * @param howMany The most profiles the list should hold
+     * @return A list of up to howMany of the most recently-added profiles
+     */
+    public List<Profile> topView(int howMany){
+        return new TopView(howMany);
+    }
+
+    /**
+     * The list returned by topView
+     */
+    private class TopView extends AbstractList<Profile> implements RandomAccess {
+        final int howMany;
+
+        TopView(int howMany){
+            this.howMany = howMany;
+        }
+
+        public Profile get(int i){
+            if(i < 0 || i >= size()) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+            return ProfileRegistry.this.get(i);
+        }
+
+        public int size(){
+            return Math.max(0, Math.min(howMany, size));
+        }
+    }
+
+    /**
+     * Determines if the list contains a profile
+     * @param item The profile in question
+     * @return True if the profile is on the list, false otherwise
+     */
+    public boolean contains(Profile item){
+        int top = size;
+        for(int x = 0; x < top; x++){
+            if(atPlace(x) == item) return true;
+        }
+        return false;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    /**
+     * The list grows as needed, so it is never full
+     * @return False
+     */
+    public boolean isFull(){
+        return false;
+    }
+
+    public int size(){
+        return size;
+    }
+}
@@ -0,0 +1,204 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps recent recommendations so asking again for the same profile doesn't rescan its
+ * friends of friends. Entries are dropped least recently used first once there are more than
+ * maxSize of them.
+ *
+ * Each entry remembers whose follows went into it. When a profile follows or unfollows
+ * someone, only the entries that read that profile's follows go stale: its own, those of
+ * the people who follow it, and for three hop entries those one step further back.
+ *
+ * Only the least recently used order is kept under the cache's lock. Follows and unfollows
+ * never take it: they bump a counter for the profile's stripe and mark the entries that read
+ * it stale, which a later lookup throws away. Recommendations are worked out outside the
+ * lock too, so sessions don't wait on each other's scans. A follow can land while a
+ * recommendation is being worked out; then the answer is still returned but not kept, since
+ * it may have read the follows from before.
+ * @author Lenny Maynard
+ */
+public class RecommendationCache {
+
+    /**
+     * The cache Profile uses
+     */
+    static final RecommendationCache shared = new RecommendationCache(100);
+
+    static final int STRIPES = 64;            //change counters, each shared by the profiles hashing to it
+
+    /**
+     * A cached answer and the profiles it was worked out from
+     */
+    static class Entry {
+        final int howMany;
+        final int hops;
+        final List<ProfileInterface> result;
+        final List<ProfileInterface> read;
+        volatile boolean stale;               //set once one of the read profiles changes its follows
+
+        Entry(int howMany, int hops, List<ProfileInterface> result, List<ProfileInterface> read){
+            this.howMany = howMany;
+            this.hops = hops;
+            this.result = result;
+            this.read = read;
+        }
+    }
+
+    private int maxSize;
+    private final LinkedHashMap<ProfileInterface, Entry> entries;
+    private final ConcurrentHashMap<ProfileInterface, Set<Entry>> dependents;     //the entries that read each profile's follows
+    private final AtomicLongArray changes = new AtomicLongArray(STRIPES);        //follow changes per stripe, to spot ones made during a scan
+    private final AtomicLong invalidations = new AtomicLong();
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * A constructor that takes in the most entries to keep
+     * @param maxSize The most profiles to keep recommendations for
+     */
+    public RecommendationCache(int maxSize){
+        this.maxSize = maxSize;
+        entries = new LinkedHashMap<ProfileInterface, Entry>(16, 0.75f, true);     //access order, so the eldest is least recently used
+        dependents = new ConcurrentHashMap<ProfileInterface, Set<Entry>>();
+    }
+
+    private static int stripe(ProfileInterface profile){
+        return System.identityHashCode(profile) & (STRIPES - 1);
+    }
+
+    /**
+     * Gets recommendations for a profile, working them out only if they aren't cached
+     * @param profile The profile to make suggestions for
+     * @param howMany The most suggestions to return
+     * @param hops 2 to only look at friends of friends, 3 to look one step further
+     * @return Up to howMany profiles, best first
+     */
+    public List<ProfileInterface> recommend(ProfileInterface profile, int howMany, int hops){
+        synchronized(this){
+            Entry entry = entries.get(profile);
+            if(entry != null && !entry.stale && entry.howMany == howMany && entry.hops == hops){
+                hits++;
+                return entry.result;
+            }
+            misses++;
+            if(entry != null) drop(profile);              //stale or asked for differently, so replace it
+        }
+        long[] before = new long[STRIPES];
+        for(int i = 0; i < STRIPES; i++) before[i] = changes.get(i);
+        List<ProfileInterface> read = new ArrayList<ProfileInterface>();
+        List<ProfileInterface> result = Collections.unmodifiableList(
+                FriendRecommender.recommend(profile, howMany, hops, read));
+        for(ProfileInterface p : read){
+            if(changes.get(stripe(p)) != before[stripe(p)]) return result;    //a follow landed mid-scan, so don't keep it
+        }
+        keep(profile, new Entry(howMany, hops, result, read), before);
+        return result;
+    }
+
+    /**
+     * Adds an entry and links it to the profiles it read, dropping the least recently used
+     * entries if there are too many. The links go in before the counters are checked again,
+     * so a follow either finds the entry to mark or is seen here.
+     */
+    private void keep(ProfileInterface profile, Entry entry, long[] before){
+        for(ProfileInterface p : entry.read){
+            dependents.compute(p, (key, set) -> {
+                if(set == null) set = ConcurrentHashMap.newKeySet();
+                set.add(entry);
+                return set;
+            });
+        }
+        for(ProfileInterface p : entry.read){
+            if(changes.get(stripe(p)) != before[stripe(p)]) entry.stale = true;
+        }
+        synchronized(this){
+            drop(profile);                                //another session may have just cached one
+            entries.put(profile, entry);
+            while(entries.size() > maxSize){
+                if(!drop(entries.keySet().iterator().next()).stale) evictions++;     //least recently used
+            }
+        }
+    }
+
+    /**
+     * Marks stale every entry that read a profile's follows, without taking the cache's lock.
+     * Called whenever the profile follows or unfollows someone.
+     * @param profile The profile whose follows changed
+     */
+    public void changed(ProfileInterface profile){
+        changes.incrementAndGet(stripe(profile));
+        Set<Entry> stale = dependents.remove(profile);
+        if(stale == null) return;
+        for(Entry entry : stale){
+            if(!entry.stale) invalidations.incrementAndGet();
+            entry.stale = true;
+        }
+    }
+
+    /**
+     * Removes a profile's entry and its links from the profiles it read
+     * @return The entry removed, or null if there wasn't one
+     */
+    private Entry drop(ProfileInterface profile){
+        Entry entry = entries.remove(profile);
+        if(entry == null) return null;
+        for(ProfileInterface p : entry.read){
+            dependents.computeIfPresent(p, (key, set) -> {
+                set.remove(entry);
+                return set.isEmpty() ? null : set;
+            });
+        }
+        return entry;
+    }
+
+    /**
+     * Changes the most entries to keep, dropping the least recently used ones if needed
+     * @param maxSize The most profiles to keep recommendations for
+     */
+    public synchronized void setMaxSize(int maxSize){
+        this.maxSize = maxSize;
+        while(entries.size() > maxSize){
+            if(!drop(entries.keySet().iterator().next()).stale) evictions++;
+        }
+    }
+
+    /**
+     * Empties the cache, keeping the counters
+     */
+    public synchronized void clear(){
+        entries.clear();
+        dependents.clear();
+    }
+
+    public synchronized long hits(){
+        return hits;
+    }
+
+    public synchronized long misses(){
+        return misses;
+    }
+
+    public synchronized int size(){
+        return entries.size();
+    }
+
+    /**
+     * Describes how well the cache is doing, for picking maxSize
+     * @return The counters on one line
+     */
+    public synchronized String toString(){
+        long asked = hits + misses;
+        return "Recommendation cache: " + entries.size() + "/" + maxSize + " entries, "
+                + hits + " hits, " + misses + " misses"
+                + (asked == 0 ? "" : " (" + (100 * hits / asked) + "% hit rate)")
+                + ", " + invalidations.get() + " invalidated, " + evictions + " evicted";
+    }
+}
@@ -1,4 +1,7 @@
 import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
 
 /**
  * A simple stack: items are fetched most-recent first
@@ -6,9 +9,14 @@ import java.io.Serializable;
  */
 public class SimpleStack<T> implements SimpleStackInterface<T> , Serializable{
 
+    private static final long serialVersionUID = -9137507976642519583L;    //matches saves made before it was pinned
+
     T[] array;
     int capacity;
     int fill;
+    boolean growable;      //whether add makes room instead of failing when the array is full
+    boolean shrinking;     //whether remove gives back room once the stack is mostly empty
+    int minCapacity;       //remove never shrinks the array below this
 
     /**
      * A no-arg constructor that initializes all fields
@@ -31,13 +39,57 @@ public class SimpleStack<T> implements SimpleStackInterface<T> , Serializable{
         fill = 0;
     }
 
+    /**
+     * A constructor that takes in a capacity hint and whether the stack
+     * should grow past it
+     * @param capacity desired starting capacity, so bulk loads can presize
+     * @param growable true to double the capacity whenever the stack fills
+     */
+    public SimpleStack(int capacity, boolean growable){
+        this(capacity);
+        this.growable = growable;
+        minCapacity = capacity;
+    }
+
+    /**
+     * Sets whether add grows the stack instead of failing when it is full. Each time
+     * it fills the capacity doubles, so adds stay O(1) on average.
+     * @param growable true to grow, false to keep the current capacity
+     */
+    public void setGrowable(boolean growable){
+        this.growable = growable;
+        if(minCapacity == 0) minCapacity = capacity;
+    }
+
+    /**
+     * Sets whether remove shrinks a growable stack. The capacity halves once the stack is a
+     * quarter full, but never drops below the capacity it started with.
+     * @param shrinking true to give back room on remove
+     */
+    public void setShrinking(boolean shrinking){
+        this.shrinking = shrinking;
+    }
+
+    /**
+     * Moves the items into a new array of the given size
+     * @param newCapacity The new capacity, at least fill
+     */
+    @SuppressWarnings("unchecked")
+    void resize(int newCapacity){
+        T[] bigger = (T[]) new Object[newCapacity];
+        System.arraycopy(array, 0, bigger, 0, fill);
+        array = bigger;
+        capacity = newCapacity;
+    }
+
     /**
      * Adds a new T object to the top of the stack
      * @param item The item to be added
      * @return True if successful, false if there is no more room
      */
     public boolean add(T item){
-        if(array[capacity-1] != null) return false;      //return false if the array is full
+        if(growable && fill == capacity) resize(Math.max(1, capacity * 2));    //double when full
+        if(capacity == 0 || array[capacity-1] != null) return false;      //return false if the array is full
         array[fill] = item;                              //add new item
         fill++;                                          //increment counter
         return true;
@@ -52,6 +104,9 @@ public class SimpleStack<T> implements SimpleStackInterface<T> , Serializable{
         T hold = array[fill-1];            //preserve the item to be removed so it can be returned
         array[fill-1] = null;              //remove item
         fill--;                            //decrement counter
+        if(growable && shrinking && fill <= capacity / 4 && capacity / 2 >= minCapacity){
+            resize(capacity / 2);          //halve once a quarter full, so a following add can't grow it right back
+        }
         return hold;
     }
 
@@ -71,6 +126,57 @@ public class SimpleStack<T> implements SimpleStackInterface<T> , Serializable{
         return tops;
     }
 
+    /**
+     * Gets an item by its place from the top of the stack, without copying anything
+     * @param i The place, 0 for the most recently-added item
+     * @return The item, or null if the stack does not contain that many items
+     */
+    public T get(int i){
+        if(i < 0 || i >= fill) return null;     //return null if asking past the bottom
+        return array[fill - 1 - i];
+    }
+
+    /**
+     * Gets an item by its place counting from the bottom of the stack, which doesn't change
+     * when items are added on top
+     * @param place The place, 0 for the first item added
+     * @return The item, or null if the stack does not contain that many items
+     */
+    public T atPlace(int place){
+        if(place < 0 || place >= fill) return null;
+        return array[place];
+    }
+
+    /**
+     * Returns a read-only list of the top items, most recently-added first. The list reads
+     * straight from the stack instead of copying it, so it sees later adds and removes.
+     * @param howMany The most items the list should hold
+     * @return A list of up to howMany of the most recently-added items
+     */
+    public List<T> topView(int howMany){
+        return new TopView(howMany);
+    }
+
+    /**
+     * The list returned by topView
+     */
+    private class TopView extends AbstractList<T> implements RandomAccess {
+        final int howMany;
+
+        TopView(int howMany){
+            this.howMany = howMany;
+        }
+
+        public T get(int i){
+            if(i < 0 || i >= size()) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+            return SimpleStack.this.get(i);
+        }
+
+        public int size(){
+            return Math.max(0, Math.min(howMany, fill));
+        }
+    }
+
     /**
      * Determines if the stack contains the specified item
      * @param item The item in question
@@ -93,10 +199,11 @@ public class SimpleStack<T> implements SimpleStackInterface<T> , Serializable{
     }
 
     /**
-     * Determines if the stack is full (at capacity)
+     * Determines if the stack is full (at capacity). A growable stack is never full.
      * @return True if the stack is full, false otherwise
      */
     public boolean isFull(){
+        if(growable) return false;              //a growable stack always has room
         if(fill == capacity) return true;       //if final position is filled return true
         return false;
     }
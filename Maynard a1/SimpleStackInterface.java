@@ -1,3 +1,5 @@
+import java.util.List;
+
 /**
  * A simple stack interface: items are fetched most-recent first
  */
@@ -24,6 +26,29 @@ public interface SimpleStackInterface<T> {
      */
     public Object[] topItems(int howMany);
 
+    /**
+     * Gets an item by its place from the top of the stack, without copying anything
+     * @param i The place, 0 for the most recently-added item
+     * @return The item, or null if the stack does not contain that many items
+     */
+    public T get(int i);
+
+    /**
+     * Gets an item by its place counting from the bottom of the stack, which doesn't change
+     * when items are added on top
+     * @param place The place, 0 for the first item added
+     * @return The item, or null if the stack does not contain that many items
+     */
+    public T atPlace(int place);
+
+    /**
+     * Returns a read-only list of the top items, most recently-added first. The list reads
+     * straight from the stack instead of copying it, so it sees later adds and removes.
+     * @param howMany The most items the list should hold
+     * @return A list of up to howMany of the most recently-added items
+     */
+    public List<T> topView(int howMany);
+
     /**
      * Determines if the stack contains the specified item
      * @param item The item in question
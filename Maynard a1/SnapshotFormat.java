@@ -0,0 +1,427 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Reads and writes the profile list in a compact binary format instead of Java
+ * serialization. Every profile gets a number, so follows are written as plain ints and
+ * nothing is written twice or recursively.
+ *
+ * Layout, all numbers big-endian:
+ *  - int magic "PRFS", int version
+ *  - int total profiles, int listed profiles (the first listed are the client's list, bottom
+ *    first; any others are only reachable through follows)
+ *  - long position of the index
+ *  - long sequence number of the last OperationLog record the snapshot includes
+ *  - for each profile, a record: name then about, each an int byte length and UTF-8 bytes,
+ *    then an int follow count and the numbers of the followed profiles, oldest follow first,
+ *    then an int follower count and the numbers of the profiles following it
+ *  - the index: a long file position for each profile's record, so MappedProfileStore can
+ *    read any one profile without reading the ones before it
+ *
+ * Saves made before this format, with Java serialization, are converted by Client.restore.
+ * @author Lenny Maynard
+ */
+public class SnapshotFormat {
+
+    static final int MAGIC = 0x50524653;      //"PRFS"
+    static final int VERSION = 1;
+    static final int HEADER = 32;             //bytes before the first record
+
+    /**
+     * Writes the profile list and everyone it follows to a file
+     * @param data The client's profile list
+     * @param fileName The file to write
+     * @throws IOException if the file can't be written
+     */
+    public static void write(SimpleStackInterface<Profile> data, String fileName) throws IOException {
+        write(data, fileName, 0);
+    }
+
+    /**
+     * Writes the profile list and everyone it follows to a file
+     * @param data The client's profile list
+     * @param fileName The file to write
+     * @param sequence The number of the last logged change the list includes
+     * @throws IOException if the file can't be written
+     */
+    public static void write(SimpleStackInterface<Profile> data, String fileName, long sequence) throws IOException {
+        if(data instanceof ProfileGraph){
+            write((ProfileGraph) data, fileName, sequence);
+            return;
+        }
+        if(data instanceof MappedProfileStore){
+            ((MappedProfileStore) data).write(fileName, sequence);      //copies what nobody has read
+            return;
+        }
+        //number the profiles: the list first, then anyone reached only through a follow
+        IdentityHashMap<ProfileInterface, Integer> ids = new IdentityHashMap<ProfileInterface, Integer>(data.size());
+        List<ProfileInterface> people = new ArrayList<ProfileInterface>(data.size());
+        int size = data.size();
+        for(int x = 0; x < size; x++){
+            Profile p = data.atPlace(x);                        //bottom first, so restoring keeps the order
+            if(!ids.containsKey(p)){
+                ids.put(p, people.size());
+                people.add(p);
+            }
+        }
+        int listed = people.size();
+        for(int x = 0; x < people.size(); x++){
+            for(ProfileInterface other : FriendRecommender.follows(people.get(x))){
+                if(!ids.containsKey(other)){
+                    ids.put(other, people.size());
+                    people.add(other);
+                }
+            }
+        }
+
+        FileChannel channel = new FileOutputStream(fileName).getChannel();
+        try {
+            Writer out = start(channel, people.size(), listed, sequence);
+            long[] offsets = new long[people.size()];
+            for(int x = 0; x < people.size(); x++){
+                ProfileInterface p = people.get(x);
+                offsets[x] = out.position();
+                out.putString(p.getName());
+                out.putString(p.getAbout());
+                List<ProfileInterface> follows = FriendRecommender.follows(p);
+                out.putInt(follows.size());
+                for(int y = follows.size() - 1; y >= 0; y--) out.putInt(ids.get(follows.get(y)));   //oldest first
+                List<Integer> followers = new ArrayList<Integer>();
+                if(p instanceof Profile){
+                    for(ProfileInterface other : ((Profile) p).followers()){
+                        Integer id = ids.get(other);
+                        if(id != null) followers.add(id);               //anyone not saved isn't a follower after restoring
+                    }
+                }
+                out.putInt(followers.size());
+                for(int id : followers) out.putInt(id);
+            }
+            finish(channel, out, offsets);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes a snapshot's header
+     * @param channel The file to write
+     * @param total The number of records that will follow
+     * @param listed How many of them are the client's list
+     * @param sequence The number of the last logged change the snapshot includes
+     * @return A writer positioned for the first record
+     */
+    static Writer start(FileChannel channel, int total, int listed, long sequence) throws IOException {
+        Writer out = new Writer(channel);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(total);
+        out.putInt(listed);
+        out.putLong(0);                                         //index position, filled in by finish
+        out.putLong(sequence);
+        return out;
+    }
+
+    /**
+     * Writes the index after the last record, fills in its position in the header and syncs
+     * @param offsets Each record's file position, by number
+     */
+    static void finish(FileChannel channel, Writer out, long[] offsets) throws IOException {
+        long index = out.position();
+        for(long offset : offsets) out.putLong(offset);
+        out.flush();
+        ByteBuffer patch = ByteBuffer.allocate(8);
+        patch.putLong(0, index);
+        while(patch.hasRemaining()) channel.write(patch, 16 + patch.position());
+        channel.force(true);                                    //on disk before the log is emptied
+    }
+
+    /**
+     * Reads a profile list written by write. The first pass makes every profile, the second
+     * links up the follows once every number has a profile.
+     * @param fileName The file to read
+     * @return The client's profile list
+     * @throws IOException if the file can't be read or isn't a snapshot
+     */
+    public static ProfileRegistry read(String fileName) throws IOException {
+        FileChannel channel = new FileInputStream(fileName).getChannel();
+        try {
+            Reader in = new Reader(channel);
+            if(in.getInt() != MAGIC) throw new IOException(fileName + " is not a profile snapshot");
+            int version = in.getInt();
+            if(version != VERSION) throw new IOException(fileName + " is snapshot version " + version + ", expected " + VERSION);
+            int total = in.getInt();
+            int listed = in.getInt();
+            if(total < 0 || listed < 0 || listed > total) throw new IOException(fileName + " has a bad profile count");
+            in.getLong();                                       //the index is only for lazy loading
+            in.getLong();                                       //the sequence is read by sequence()
+
+            //first pass: make every profile, holding on to the follow numbers
+            Profile[] people = new Profile[total];
+            int[][] follows = new int[total][];
+            for(int x = 0; x < total; x++){
+                String name = in.getString();
+                people[x] = new Profile(name, in.getString());
+                follows[x] = getFollows(in, total, fileName);
+                getFollows(in, total, fileName);                //followers come back as the follows are linked
+            }
+
+            //second pass: every number has a profile now, so link the follows
+            for(int x = 0; x < total; x++){
+                for(int id : follows[x]) people[x].follow(people[id]);
+                follows[x] = null;
+            }
+
+            ProfileRegistry data = new ProfileRegistry();
+            for(int x = 0; x < listed; x++) data.add(people[x]);
+            return data;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes a ProfileGraph straight from its arrays. Its numbers are already the places
+     * counting from the bottom of the list, so no profile objects are made.
+     * @param graph The graph
+     * @param fileName The file to write
+     * @param sequence The number of the last logged change the graph includes
+     * @throws IOException if the file can't be written
+     */
+    static void write(ProfileGraph graph, String fileName, long sequence) throws IOException {
+        int total = graph.size();
+        FileChannel channel = new FileOutputStream(fileName).getChannel();
+        try {
+            Writer out = start(channel, total, total, sequence);
+            long[] offsets = new long[total];
+            for(int x = 0; x < total; x++){
+                offsets[x] = out.position();
+                out.putString(graph.name(x));
+                out.putString(graph.about(x));
+                int[] follows = graph.follows(x);             //already oldest first
+                out.putInt(follows.length);
+                for(int id : follows) out.putInt(id);
+                int[] followers = graph.followers(x);
+                out.putInt(followers.length);
+                for(int id : followers) out.putInt(id);
+            }
+            finish(channel, out, offsets);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads a snapshot into a ProfileGraph, keeping the follows as numbers. Profiles that were
+     * only reachable through follows are put on the list too, since a graph has no others.
+     * @param fileName The file to read
+     * @return The graph
+     * @throws IOException if the file can't be read or isn't a snapshot
+     */
+    public static ProfileGraph readGraph(String fileName) throws IOException {
+        FileChannel channel = new FileInputStream(fileName).getChannel();
+        try {
+            Reader in = new Reader(channel);
+            if(in.getInt() != MAGIC) throw new IOException(fileName + " is not a profile snapshot");
+            int version = in.getInt();
+            if(version != VERSION) throw new IOException(fileName + " is snapshot version " + version + ", expected " + VERSION);
+            int total = in.getInt();
+            int listed = in.getInt();
+            if(total < 0 || listed < 0 || listed > total) throw new IOException(fileName + " has a bad profile count");
+            in.getLong();
+            in.getLong();
+
+            ProfileGraph graph = new ProfileGraph();
+            int[][] follows = new int[total][];
+            for(int x = 0; x < total; x++){
+                String name = in.getString();
+                graph.add(name, in.getString());
+                follows[x] = getFollows(in, total, fileName);
+                getFollows(in, total, fileName);                //follow builds the followers
+            }
+            for(int x = 0; x < total; x++){
+                for(int id : follows[x]) graph.follow(x, id);
+                follows[x] = null;
+            }
+            return graph;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads a follow count and that many profile numbers
+     * @throws IOException if a number is outside the snapshot
+     */
+    static int[] getFollows(Reader in, int total, String fileName) throws IOException {
+        int count = in.getInt();
+        if(count < 0) throw new IOException(fileName + " has a bad follow count");
+        int[] ids = new int[count];
+        for(int y = 0; y < count; y++){
+            ids[y] = in.getInt();
+            if(ids[y] < 0 || ids[y] >= total) throw new IOException(fileName + " has a follow of unknown profile " + ids[y]);
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the number of the last logged change a snapshot includes
+     * @param fileName The snapshot
+     * @return The sequence number, 0 if the file is too short to hold one
+     * @throws IOException if the file can't be read
+     */
+    public static long sequence(String fileName) throws IOException {
+        FileChannel channel = new FileInputStream(fileName).getChannel();
+        try {
+            ByteBuffer head = ByteBuffer.allocate(HEADER);
+            while(head.hasRemaining() && channel.read(head) != -1);
+            if(head.hasRemaining() || head.getInt(0) != MAGIC) return 0;
+            return head.getLong(24);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Checks whether a file starts like a snapshot, as opposed to an older serialized save
+     * @param fileName The file to check
+     * @return true if it has the snapshot magic number
+     * @throws IOException if the file can't be read
+     */
+    public static boolean isSnapshot(String fileName) throws IOException {
+        FileChannel channel = new FileInputStream(fileName).getChannel();
+        try {
+            ByteBuffer head = ByteBuffer.allocate(4);
+            while(head.hasRemaining() && channel.read(head) != -1);
+            return !head.hasRemaining() && head.getInt(0) == MAGIC;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes numbers and strings through a buffer to a FileChannel
+     */
+    static class Writer {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+
+        long flushed;         //bytes already written to the channel
+
+        Writer(FileChannel channel){
+            this.channel = channel;
+        }
+
+        /**
+         * Gets the file position the next byte will be written at
+         */
+        long position(){
+            return flushed + buffer.position();
+        }
+
+        /**
+         * Makes sure there is room for some bytes, writing out the buffer if needed
+         */
+        void room(int bytes) throws IOException {
+            if(buffer.remaining() < bytes) flush();
+        }
+
+        void putInt(int value) throws IOException {
+            room(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            room(8);
+            buffer.putLong(value);
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            int done = 0;
+            while(done < bytes.length){                         //a long string may not fit in one buffer
+                room(1);
+                int part = Math.min(buffer.remaining(), bytes.length - done);
+                buffer.put(bytes, done, part);
+                done += part;
+            }
+        }
+
+        /**
+         * Copies the remaining bytes of a buffer, such as part of a mapped file
+         */
+        void putBytes(ByteBuffer bytes) throws IOException {
+            while(bytes.hasRemaining()){
+                room(1);
+                ByteBuffer part = bytes.duplicate();
+                part.limit(part.position() + Math.min(buffer.remaining(), bytes.remaining()));
+                buffer.put(part);
+                bytes.position(part.position());
+            }
+        }
+
+        void flush() throws IOException {
+            flushed += buffer.position();
+            buffer.flip();
+            while(buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reads numbers and strings through a buffer from a FileChannel
+     */
+    static class Reader {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+
+        Reader(FileChannel channel){
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        /**
+         * Makes sure some bytes are in the buffer, reading more of the file if needed
+         * @throws IOException if the file ends first
+         */
+        void need(int bytes) throws IOException {
+            if(buffer.remaining() >= bytes) return;
+            buffer.compact();
+            while(buffer.position() < bytes){
+                if(channel.read(buffer) == -1) throw new IOException("Snapshot ends too soon");
+            }
+            buffer.flip();
+        }
+
+        int getInt() throws IOException {
+            need(4);
+            return buffer.getInt();
+        }
+
+        long getLong() throws IOException {
+            need(8);
+            return buffer.getLong();
+        }
+
+        String getString() throws IOException {
+            int length = getInt();
+            if(length < 0) throw new IOException("Bad string length " + length);
+            byte[] bytes = new byte[length];
+            int done = 0;
+            while(done < length){
+                need(1);
+                int part = Math.min(buffer.remaining(), length - done);
+                buffer.get(bytes, done, part);
+                done += part;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
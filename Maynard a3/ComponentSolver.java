@@ -0,0 +1,223 @@
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Splits a friendship graph into its connected components and distributes coupons in each one
+ * on its own. People in different components can never clash, so a hard component doesn't make
+ * the search backtrack through unrelated people, and components can be solved in parallel.
+ */
+public class ComponentSolver {
+
+    final FriendGraph graph;
+    final int[][] members;       // members[c] holds the people in component c, sorted
+    final FriendGraph[] parts;   // parts[c] is the graph of component c
+    SolverStats stats;           // where the minimizing searches send their counters, may be null
+    int shapesCounted;           // components the last count searched, the rest had a shape already counted
+
+    /**
+     * Finds the components of a friendship graph
+     * @param graph The friendship graph
+     */
+    public ComponentSolver(FriendGraph graph) {
+        this.graph = graph;
+        int[] component = new int[graph.size()];
+        int count = graph.components(component);
+
+        int[] sizes = new int[count];
+        for (int person = 0; person < graph.size(); person++) sizes[component[person]]++;
+        members = new int[count][];
+        for (int c = 0; c < count; c++) members[c] = new int[sizes[c]];
+        int[] fill = new int[count];
+        for (int person = 0; person < graph.size(); person++) {
+            members[component[person]][fill[component[person]]++] = person;
+        }
+
+        parts = new FriendGraph[count];
+        int[] local = new int[graph.size()];
+        for (int c = 0; c < count; c++) {
+            if (members[c].length > 1) parts[c] = graph.subgraph(members[c], local);
+        }
+    }
+
+    /**
+     * Sends the counters of the searches run by minimize to a SolverStats
+     * @param stats The stats to add to, or null to stop reporting
+     */
+    public void setStats(SolverStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Gets the number of components
+     * @return The number of components
+     */
+    public int count() {
+        return members.length;
+    }
+
+    /**
+     * Distributes coupons in every component and stitches the results back together
+     * @param solverFor Builds a configured solver for a component's graph
+     * @param threads The number of components to solve at once
+     * @return The coupon for each person of the whole graph, or null if some component has no
+     * solution
+     */
+    public int[] solve(Function<FriendGraph, CouponSolver> solverFor, int threads) {
+        return run(part -> solverFor.apply(part).solve(), threads);
+    }
+
+    /**
+     * Finds the smallest number of coupons for every component and stitches the results back
+     * together. The whole graph needs as many coupons as its hardest component.
+     * @param forwardChecking true to search with forward checking
+     * @param threads The number of components to solve at once
+     * @return A distribution using as few coupons as possible
+     */
+    public int[] minimize(boolean forwardChecking, int threads) {
+        return run(part -> CouponSolver.minimumCoupons(part, forwardChecking, stats), threads);
+    }
+
+    /**
+     * Counts the ways to distribute coupons over the whole graph without listing them. People in
+     * different components can't clash, so the total is the product of each component's count.
+     * Components with the same shape, such as the many pairs and lone people in a big graph,
+     * have the same count, so a component whose shape description matches one already counted
+     * isn't searched again. Same-shaped components usually get the same description, but ones
+     * whose relabeling breaks ties differently are each searched. Searching a component still
+     * walks every one of its solutions up to relabeling, so a component with a huge number of
+     * them takes as long as listing them would.
+     * @param numOfCoupons The number of different coupons
+     * @param forwardChecking true to search with forward checking
+     * @return The number of ways to distribute the coupons
+     */
+    public BigInteger count(int numOfCoupons, boolean forwardChecking) {
+        Map<String, BigInteger> memo = new HashMap<String, BigInteger>();
+        shapesCounted = 0;
+        BigInteger total = BigInteger.ONE;
+        for (int c = 0; c < members.length && total.signum() != 0; c++) {
+            if (parts[c] == null) {
+                total = total.multiply(BigInteger.valueOf(numOfCoupons));   // anyone can have any coupon
+                continue;
+            }
+            String shape = shape(parts[c]);
+            BigInteger ways = memo.get(shape);
+            if (ways == null) {
+                shapesCounted++;
+                CouponSolver solver = new CouponSolver(parts[c], numOfCoupons);
+                solver.setOrdering(CouponSolver.Ordering.DEGREE);
+                solver.setForwardChecking(forwardChecking && numOfCoupons <= 63);
+                solver.setStats(stats);
+                ways = solver.count();
+                memo.put(shape, ways);
+            }
+            total = total.multiply(ways);
+        }
+        return total;
+    }
+
+    /**
+     * Describes a component's friendships with its people relabeled by their degree and then by
+     * the degrees around them a few friends out, so that same-shaped components numbered in a
+     * different order usually get the same description. Two descriptions are only equal when
+     * the components really are the same shape, since every friendship is spelled out.
+     * @param part The component's graph
+     * @return Each relabeled person's friends, in label order
+     */
+    static String shape(FriendGraph part) {
+        int n = part.size();
+        long[] color = new long[n];
+        for (int i = 0; i < n; i++) color[i] = part.degree(i);
+        for (int round = 0; round < 3; round++) {
+            long[] next = new long[n];
+            for (int i = 0; i < n; i++) {
+                long around = 0;                        // a sum, so the friends' order doesn't matter
+                for (int e = part.offsets[i]; e < part.offsets[i + 1]; e++) around += mix(color[part.neighbors[e]]);
+                next[i] = color[i] * 0x9E3779B97F4A7C15L + around;
+            }
+            color = next;
+        }
+        final long[] key = color;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(key[a], key[b]));
+        int[] label = new int[n];
+        for (int k = 0; k < n; k++) label[order[k]] = k;
+
+        StringBuilder out = new StringBuilder();
+        for (int k = 0; k < n; k++) {
+            int person = order[k];
+            int[] friends = new int[part.degree(person)];
+            for (int e = part.offsets[person], f = 0; e < part.offsets[person + 1]; e++) friends[f++] = label[part.neighbors[e]];
+            Arrays.sort(friends);
+            out.append(Arrays.toString(friends));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Scrambles a color so sums of colors rarely collide
+     */
+    static long mix(long x) {
+        x *= 0xBF58476D1CE4E5B9L;
+        return x ^ (x >>> 31);
+    }
+
+    /**
+     * Solves every component, largest first, and copies each answer to the people it belongs to
+     */
+    int[] run(Function<FriendGraph, int[]> solveOne, int threads) {
+        Integer[] bySize = new Integer[members.length];
+        for (int c = 0; c < members.length; c++) bySize[c] = c;
+        Arrays.sort(bySize, (a, b) -> members[b].length - members[a].length);
+
+        int[] sol = new int[graph.size()];
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+        for (int c : bySize) {
+            if (parts[c] == null) {
+                for (int person : members[c]) sol[person] = 1;     // nobody to clash with
+                continue;
+            }
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    if (failed.get()) return;
+                    int[] part = solveOne.apply(parts[c]);
+                    if (part == null) {
+                        failed.set(true);
+                        return;
+                    }
+                    for (int i = 0; i < part.length; i++) sol[members[c][i]] = part[i];
+                }
+            });
+        }
+
+        if (threads > 1) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        invokeAll(tasks);
+                    }
+                });
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            for (RecursiveAction task : tasks) {
+                task.invoke();
+                if (failed.get()) break;
+            }
+        }
+        return failed.get() ? null : sol;
+    }
+}
@@ -0,0 +1,983 @@
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A coupon solver that keeps the friendship grid as bitsets. Instead of rescanning the whole
+ * grid like FriendsCoupon.reject, it only checks the person who just got a coupon against the
+ * people already holding that coupon. FriendsCoupon.reject and FriendsCoupon.isFullSolution
+ * are still the reference path the tests compare against.
+ */
+public class CouponSolver {
+
+    /**
+     * The order in which people are given coupons
+     */
+    public enum Ordering {
+        /** People in index order, the same order extend uses */
+        INDEX,
+        /** People with the most friends first */
+        DEGREE,
+        /** The person whose friends already hold the most different coupons first (DSatur),
+         *  breaking ties by number of friends still without a coupon */
+        DSATUR;
+
+        /**
+         * Picks the next person to give a coupon to
+         * @param solver The solver doing the search
+         * @return The person to give a coupon to next
+         */
+        int pick(CouponSolver solver) {
+            if (this != DSATUR) return solver.staticOrder[solver.depth];
+            int best = -1;
+            int bestSat = -1;
+            int bestDegree = -1;
+            for (int w = 0; w < solver.words; w++) {
+                long bits = solver.unassigned[w];
+                while (bits != 0) {
+                    int person = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    int sat = solver.saturation(person);
+                    if (sat < bestSat) continue;
+                    int open = solver.unassignedFriends(person);
+                    if (sat > bestSat || open > bestDegree) {
+                        best = person;
+                        bestSat = sat;
+                        bestDegree = open;
+                    }
+                }
+            }
+            return best;
+        }
+    }
+
+    final int size;              // number of people
+    final int words;             // longs needed for one row of bits
+    final long[][] friends;      // friends[i] has bit j set if person i and j are friends
+    final long[][] holders;      // holders[c] has bit i set if person i holds coupon c
+    int numOfCoupons;            // coupons the search may use, at most holders.length - 1
+
+    final int[] degree;          // number of friends each person has
+    final long[] unassigned;     // bit i set if person i has no coupon yet
+
+    final int[] assignment;      // assignment[i] is person i's coupon, 0 if they don't have one
+    final int[] order;           // order[d] is the person given a coupon at depth d
+    int[] staticOrder;           // fixed order for INDEX and DEGREE
+    Ordering ordering;
+
+    boolean symmetryBreaking;    // whether to only open coupon c+1 once coupon c is used
+    final int[] highest;         // highest coupon used by the people before depth d
+
+    boolean forwardChecking;     // whether to keep the domains below up to date
+    final long[] domain;         // bit c set if coupon c is still legal for person i
+    final int[] trail;           // people whose domain lost a coupon, in the order it happened
+    final int[] trailMark;       // trail length before the person at depth d got a coupon
+    int trailSize;
+
+    int depth;                   // number of people with a coupon, the search cursor
+    int base;                    // the search never backtracks above this depth
+    long steps;                  // number of search steps taken
+    long rejects;                // coupons ruled out because of a friend
+    long backtracks;             // times the search backed up to the person before
+    int maxDepth;                // deepest the search has gone
+    boolean emptyGiven;          // advance has handed out the one solution of an empty graph
+    long stepBudget = Long.MAX_VALUE;   // steps one call to advance may take before giving up
+    SolverStats stats;           // where the counters go, may be null
+    AtomicBoolean cancel;        // set by another thread to stop the search, may be null
+
+    /**
+     * Builds the bitsets for a friendship grid
+     * @param friendship The friendship grid, 1 if two people are friends
+     * @param numOfCoupons The number of different coupons
+     */
+    public CouponSolver(int[][] friendship, int numOfCoupons) {
+        this(FriendGraph.fromMatrix(friendship), numOfCoupons);
+    }
+
+    /**
+     * Builds the bitsets for a friendship graph
+     * @param graph The friendship graph
+     * @param numOfCoupons The number of different coupons
+     */
+    public CouponSolver(FriendGraph graph, int numOfCoupons) {
+        this.size = graph.size();
+        this.words = (size + 63) >>> 6;
+        this.numOfCoupons = numOfCoupons;
+        friends = new long[size][words];
+        for (int i = 0; i < size; i++) {
+            for (int j = graph.offsets[i]; j < graph.offsets[i + 1]; j++) {
+                int friend = graph.neighbors[j];
+                friends[i][friend >>> 6] |= 1L << friend;
+            }
+        }
+        holders = new long[numOfCoupons + 1][words];
+        degree = new int[size];
+        for (int i = 0; i < size; i++) {
+            for (int w = 0; w < words; w++) degree[i] += Long.bitCount(friends[i][w]);
+        }
+        unassigned = new long[words];
+        for (int i = 0; i < size; i++) unassigned[i >>> 6] |= 1L << i;
+        assignment = new int[size];
+        order = new int[size];
+        domain = new long[size];
+        trail = new int[size * Math.min(numOfCoupons, 63)];     // each (person, coupon) is removed at most once
+        trailMark = new int[size];
+        highest = new int[size + 1];
+        depth = 0;
+        symmetryBreaking = true;
+        setOrdering(Ordering.INDEX);
+    }
+
+    /**
+     * Copies another solver's search state. The grid bitsets are shared, so friendships must not
+     * change while a copy is searching.
+     * @param other The solver to copy
+     */
+    CouponSolver(CouponSolver other) {
+        size = other.size;
+        words = other.words;
+        friends = other.friends;
+        degree = other.degree;
+        numOfCoupons = other.numOfCoupons;
+        holders = new long[other.holders.length][];
+        for (int c = 0; c < holders.length; c++) holders[c] = other.holders[c].clone();
+        unassigned = other.unassigned.clone();
+        assignment = other.assignment.clone();
+        order = other.order.clone();
+        staticOrder = other.staticOrder;
+        ordering = other.ordering;
+        symmetryBreaking = other.symmetryBreaking;
+        highest = other.highest.clone();
+        forwardChecking = other.forwardChecking;
+        domain = other.domain.clone();
+        trail = other.trail.clone();
+        trailMark = other.trailMark.clone();
+        trailSize = other.trailSize;
+        depth = other.depth;
+        base = other.base;
+        stats = other.stats;
+        cancel = other.cancel;
+    }
+
+    /**
+     * Sends this solver's counters to a SolverStats as it searches
+     * @param stats The stats to add to, or null to stop reporting
+     */
+    public void setStats(SolverStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Changes how many coupons the search may use, without rebuilding the bitsets. Takes every
+     * coupon back.
+     * @param numOfCoupons The number of different coupons
+     * @throws IllegalArgumentException if the solver was built for fewer coupons
+     */
+    public void setNumOfCoupons(int numOfCoupons) {
+        if (numOfCoupons < 0 || numOfCoupons >= holders.length) {
+            throw new IllegalArgumentException("Solver was built for at most " + (holders.length - 1) + " coupons");
+        }
+        if (forwardChecking && numOfCoupons > 63) {
+            throw new IllegalArgumentException("Forward checking supports at most 63 coupons");
+        }
+        this.numOfCoupons = numOfCoupons;
+        reset();
+    }
+
+    /**
+     * Turns coupon symmetry breaking on or off. The coupons are interchangeable, so with it on
+     * the search only hands out coupon c+1 after coupon c has been given to someone, and never
+     * explores the same distribution with the letters swapped around. Every solution found
+     * with it off is a relabeling of one found with it on. Takes every coupon back.
+     * @param symmetryBreaking false to try every coupon for every person, for debugging
+     */
+    public void setSymmetryBreaking(boolean symmetryBreaking) {
+        this.symmetryBreaking = symmetryBreaking;
+        reset();
+    }
+
+    /**
+     * Turns forward checking on or off. With it on, every person without a coupon keeps a
+     * bitmask of the coupons none of their friends hold yet, and the search backs up as soon
+     * as someone's mask runs empty instead of waiting to reach them. Takes every coupon back.
+     * @param forwardChecking true to prune with the remaining-coupon domains
+     * @throws IllegalArgumentException if there are more than 63 coupons to fit in a mask
+     */
+    public void setForwardChecking(boolean forwardChecking) {
+        if (forwardChecking && numOfCoupons > 63) {
+            throw new IllegalArgumentException("Forward checking supports at most 63 coupons");
+        }
+        this.forwardChecking = forwardChecking;
+        reset();
+    }
+
+    /**
+     * Chooses the order people are given coupons in. Takes every coupon back.
+     * @param ordering The ordering strategy
+     */
+    public void setOrdering(Ordering ordering) {
+        reset();
+        this.ordering = ordering;
+        Integer[] people = new Integer[size];
+        for (int i = 0; i < size; i++) people[i] = i;
+        if (ordering == Ordering.DEGREE) {
+            Arrays.sort(people, (a, b) -> degree[b] - degree[a]);    // stable, so ties stay in index order
+        }
+        staticOrder = new int[size];
+        for (int i = 0; i < size; i++) staticOrder[i] = people[i];
+        if (size > 0) order[0] = ordering.pick(this);
+    }
+
+    /**
+     * Counts the friends of a person who don't have a coupon yet
+     * @param person The person to check
+     * @return The number of their friends without a coupon
+     */
+    int unassignedFriends(int person) {
+        int count = 0;
+        for (int w = 0; w < words; w++) count += Long.bitCount(friends[person][w] & unassigned[w]);
+        return count;
+    }
+
+    /**
+     * Counts the different coupons held by a person's friends
+     * @param person The person to check
+     * @return The number of different coupons their friends hold
+     */
+    int saturation(int person) {
+        if (forwardChecking) return numOfCoupons - Long.bitCount(domain[person]);
+        int sat = 0;
+        for (int c = 1; c <= numOfCoupons; c++) {
+            if (conflicts(person, c)) sat++;
+        }
+        return sat;
+    }
+
+    /**
+     * Checks if giving a person a coupon would clash with a friend who already has it
+     * @param person The person getting the coupon
+     * @param coupon The coupon they would get
+     * @return true if one of their friends already holds the coupon
+     */
+    boolean conflicts(int person, int coupon) {
+        long[] mine = friends[person];
+        long[] same = holders[coupon];
+        for (int w = 0; w < words; w++) {
+            if ((mine[w] & same[w]) != 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Counts how many of a person's friends hold a coupon
+     * @param person The person to check
+     * @param coupon The coupon to look for
+     * @return The number of friends holding the coupon
+     */
+    int countConflicts(int person, int coupon) {
+        int count = 0;
+        for (int w = 0; w < words; w++) {
+            count += Long.bitCount(friends[person][w] & holders[coupon][w]);
+        }
+        return count;
+    }
+
+    void give(int person, int coupon) {
+        holders[coupon][person >>> 6] |= 1L << person;
+        unassigned[person >>> 6] &= ~(1L << person);
+    }
+
+    void take(int person, int coupon) {
+        holders[coupon][person >>> 6] &= ~(1L << person);
+        unassigned[person >>> 6] |= 1L << person;
+    }
+
+    /**
+     * Finds the next coupon to try for the person at a depth
+     * @param d The depth of the person
+     * @param person The person getting a coupon
+     * @param after The last coupon tried, 0 if none
+     * @return The next coupon above after that doesn't clash with a friend, or 0 if there is none
+     */
+    int nextCoupon(int d, int person, int after) {
+        int limit = numOfCoupons;
+        if (symmetryBreaking && highest[d] + 1 < limit) limit = highest[d] + 1;    // at most one new coupon
+        if (forwardChecking) {
+            if (after >= limit) return 0;
+            long left = domain[person] & (-1L << (after + 1)) & (-1L >>> (63 - limit));
+            return left == 0 ? 0 : Long.numberOfTrailingZeros(left);
+        }
+        int coupon = after + 1;
+        while (coupon <= limit && conflicts(person, coupon)) {
+            rejects++;
+            coupon++;
+        }
+        return coupon <= limit ? coupon : 0;
+    }
+
+    /**
+     * Gives the person at a depth their coupon and, with forward checking, removes it from the
+     * domains of their friends without one
+     * @param d The depth of the person
+     * @param person The person getting the coupon
+     * @param coupon The coupon they get
+     * @return false if some friend has no legal coupon left, true otherwise
+     */
+    boolean assign(int d, int person, int coupon) {
+        give(person, coupon);
+        highest[d + 1] = Math.max(highest[d], coupon);
+        if (!forwardChecking) return true;
+        trailMark[d] = trailSize;
+        long bit = 1L << coupon;
+        boolean alive = true;
+        long[] mine = friends[person];
+        for (int w = 0; w < words; w++) {
+            long bits = mine[w] & unassigned[w];
+            while (bits != 0) {
+                int friend = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if ((domain[friend] & bit) != 0) {
+                    domain[friend] &= ~bit;
+                    trail[trailSize++] = friend;
+                    if (domain[friend] == 0) alive = false;
+                }
+            }
+        }
+        return alive;
+    }
+
+    /**
+     * Takes back the coupon of the person at a depth, restoring their friends' domains
+     * @param d The depth of the person
+     */
+    void unassign(int d) {
+        int person = order[d];
+        int coupon = assignment[person];
+        if (forwardChecking) {
+            long bit = 1L << coupon;
+            while (trailSize > trailMark[d]) domain[trail[--trailSize]] |= bit;
+        }
+        take(person, coupon);
+    }
+
+    /**
+     * Bitset version of FriendsCoupon.reject, used to check the two paths agree
+     * @param partial The partial solution
+     * @return true if two friends hold the same coupon, false otherwise
+     */
+    public boolean reject(int[] partial) {
+        boolean rejected = false;
+        reset();
+        for (int i = 0; i < size && !rejected; i++) {
+            if (partial[i] == 0) continue;
+            if (conflicts(i, partial[i])) rejected = true;
+            give(i, partial[i]);
+        }
+        for (int i = 0; i < size; i++) {            // leave the holders empty again
+            if (partial[i] != 0) take(i, partial[i]);
+        }
+        return rejected;
+    }
+
+    /**
+     * Finds a way to correctly distribute coupons, starting from nobody having one
+     * @return A copy of the solution, or null if there is none
+     */
+    public int[] solve() {
+        reset();
+        if (advance()) return assignment.clone();
+        return null;
+    }
+
+    /**
+     * Takes every coupon back so the search starts over
+     */
+    public void reset() {
+        emptyGiven = false;
+        if (size == 0) return;
+        if (depth == size) depth--;                  // everyone has a coupon
+        for (; depth >= 0; depth--) {
+            int person = order[depth];
+            if (assignment[person] != 0) take(person, assignment[person]);
+            assignment[person] = 0;
+        }
+        depth = 0;
+        base = 0;
+        long full = numOfCoupons == 0 ? 0 : (-1L >>> (64 - Math.min(numOfCoupons, 63))) << 1;
+        for (int i = 0; i < size; i++) domain[i] = full;    // bits 1..numOfCoupons
+        trailSize = 0;
+        if (ordering != null) order[0] = ordering.pick(this);
+    }
+
+    /**
+     * Moves the search forward to the next complete solution. This works on the single
+     * assignment array in place, with depth marking how many people have a coupon and order
+     * remembering who got one at each depth, so a step never allocates or rescans the array to
+     * find the last person. Calling it again after it returns true backs up from that solution
+     * and continues the search.
+     * @return true if the assignment array now holds a solution, false if there are no more
+     */
+    public boolean advance() {
+        if (size == 0) {                                 // nobody to give a coupon, which works once
+            if (emptyGiven) return false;
+            emptyGiven = true;
+            return true;
+        }
+        if (base == size) return false;                  // everyone is pinned, nothing left to try
+        if (depth == size) {                             // back up from the last solution
+            depth--;
+            unassign(depth);
+        }
+        long budget = stepBudget;
+        while (depth >= base && depth < size) {
+            if ((steps & 1023) == 0) {
+                if (cancel != null && cancel.get()) break;
+                if (stats != null && (steps & 0xFFFF) == 0) stats.tick(this);
+            }
+            if (budget-- == 0) break;
+            int person = order[depth];
+            int coupon = nextCoupon(depth, person, assignment[person]);
+            steps++;
+            if (coupon != 0) {
+                assignment[person] = coupon;
+                if (!assign(depth, person, coupon)) {
+                    // a friend ran out of coupons, so try the next one
+                    rejects++;
+                    unassign(depth);
+                    continue;
+                }
+                // move on to the next person
+                depth++;
+                if (depth > maxDepth) maxDepth = depth;
+                if (depth < size) order[depth] = ordering.pick(this);
+            } else {
+                // out of coupons for this person, so backtrack to the one before
+                backtracks++;
+                assignment[person] = 0;
+                depth--;
+                if (depth >= base) unassign(depth);
+            }
+        }
+        if (stats != null) stats.add(this);
+        if (depth < base) {
+            depth = base;
+            return false;
+        }
+        return depth == size;
+    }
+
+    /**
+     * Gives the person at the current depth a coupon and moves the search below them for good,
+     * so later calls to advance never take it back
+     * @param coupon The coupon to give
+     * @return false if the coupon clashes with a friend or leaves one without options
+     */
+    boolean descend(int coupon) {
+        return descend(order[depth], coupon);
+    }
+
+    /**
+     * Gives a chosen person a coupon at the current depth and moves the search below them for
+     * good, so later calls to advance never take it back
+     * @param person The person to give the coupon to, who must not have one yet
+     * @param coupon The coupon to give
+     * @return false if the coupon clashes with a friend or leaves one without options
+     */
+    boolean descend(int person, int coupon) {
+        order[depth] = person;
+        if (conflicts(person, coupon)) return false;
+        assignment[person] = coupon;
+        if (!assign(depth, person, coupon)) {
+            unassign(depth);
+            assignment[person] = 0;
+            return false;
+        }
+        depth++;
+        base = depth;
+        if (depth < size) order[depth] = ordering.pick(this);
+        return true;
+    }
+
+    /**
+     * Finds the smallest number of coupons that can be distributed, and a way to distribute
+     * them. A greedy DSatur pass gives an upper bound and a large group of mutual friends gives
+     * a lower bound. The search then tries one coupon fewer than the best distribution so far
+     * until it fails. Every attempt reuses the same bitsets and starts with the group of
+     * mutual friends already holding coupons 1, 2, 3, ..., since they need different coupons
+     * in any distribution.
+     * @return A distribution using as few coupons as possible
+     */
+    public int[] minimize() {
+        int capacity = holders.length - 1;
+        boolean fc = forwardChecking;
+        Ordering searchOrdering = ordering;
+
+        // greedy upper bound: everyone takes the lowest coupon their friends don't hold
+        forwardChecking = false;
+        numOfCoupons = capacity;
+        setOrdering(Ordering.DSATUR);
+        while (depth < size) {
+            int person = order[depth];
+            if (!descend(person, nextCoupon(depth, person, 0))) {
+                throw new IllegalStateException("Greedy pass ran out of coupons");
+            }
+        }
+        int[] best = assignment.clone();
+        int bestCount = highestCoupon(best);
+
+        // lower bound: friends who all know each other need different coupons
+        int[] clique = largeClique();
+
+        forwardChecking = fc && bestCount - 1 <= 63;
+        setOrdering(searchOrdering);
+        for (int k = bestCount - 1; k >= clique.length && k >= 1; k = bestCount - 1) {
+            setNumOfCoupons(k);
+            boolean seeded = true;
+            for (int i = 0; i < clique.length && seeded; i++) seeded = descend(clique[i], i + 1);
+            if (!seeded || (depth < size && !advance())) break;
+            best = assignment.clone();
+            bestCount = highestCoupon(best);
+        }
+        forwardChecking = fc;
+        numOfCoupons = capacity;
+        reset();
+        return best;
+    }
+
+    /**
+     * Finds the highest coupon given out in a distribution
+     * @param sol The distribution
+     * @return The highest coupon, which is the number used when symmetry breaking is on
+     */
+    static int highestCoupon(int[] sol) {
+        int max = 0;
+        for (int coupon : sol) max = Math.max(max, coupon);
+        return max;
+    }
+
+    /**
+     * Greedily looks for a large group of people who are all friends with each other, starting
+     * from up to 64 of the people with the most friends
+     * @return The people in the group
+     */
+    int[] largeClique() {
+        Integer[] people = new Integer[size];
+        for (int i = 0; i < size; i++) people[i] = i;
+        Arrays.sort(people, (a, b) -> degree[b] - degree[a]);
+
+        int[] best = new int[0];
+        int[] clique = new int[size];
+        long[] candidates = new long[words];
+        for (int s = 0; s < size && s < 64; s++) {
+            int start = people[s];
+            if (degree[start] + 1 <= best.length) break;
+            int count = 0;
+            clique[count++] = start;
+            System.arraycopy(friends[start], 0, candidates, 0, words);
+            while (true) {
+                // add the candidate with the most friends among the other candidates
+                int pick = -1;
+                int pickScore = -1;
+                for (int w = 0; w < words; w++) {
+                    long bits = candidates[w];
+                    while (bits != 0) {
+                        int person = (w << 6) + Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+                        int score = 0;
+                        for (int x = 0; x < words; x++) score += Long.bitCount(friends[person][x] & candidates[x]);
+                        if (score > pickScore) {
+                            pick = person;
+                            pickScore = score;
+                        }
+                    }
+                }
+                if (pick < 0) break;
+                clique[count++] = pick;
+                for (int w = 0; w < words; w++) candidates[w] &= friends[pick][w];
+            }
+            if (count > best.length) best = Arrays.copyOf(clique, count);
+        }
+        return best;
+    }
+
+    /**
+     * Builds a solver with room for as many coupons as any distribution could need and finds
+     * the smallest number of coupons for a friendship graph
+     * @param graph The friendship graph
+     * @param forwardChecking true to search with forward checking
+     * @return A distribution using as few coupons as possible
+     */
+    public static int[] minimumCoupons(FriendGraph graph, boolean forwardChecking) {
+        return minimumCoupons(graph, forwardChecking, null);
+    }
+
+    /**
+     * Builds a solver with room for as many coupons as any distribution could need and finds
+     * the smallest number of coupons for a friendship graph
+     * @param graph The friendship graph
+     * @param forwardChecking true to search with forward checking
+     * @param stats Where to send the search counters, or null
+     * @return A distribution using as few coupons as possible
+     */
+    public static int[] minimumCoupons(FriendGraph graph, boolean forwardChecking, SolverStats stats) {
+        int maxFriends = 0;
+        for (int i = 0; i < graph.size(); i++) maxFriends = Math.max(maxFriends, graph.degree(i));
+        CouponSolver solver = new CouponSolver(graph, maxFriends + 1);
+        solver.setOrdering(Ordering.DSATUR);
+        solver.forwardChecking = forwardChecking;
+        solver.stats = stats;
+        return solver.minimize();
+    }
+
+    /**
+     * Makes two people friends and fixes the distribution the solver holds, touching as few
+     * people as it can. Each step below is only tried if the one before it failed:
+     *  - give one of the two a coupon none of their friends hold
+     *  - give one of the two a coupon held by a single friend, after moving that friend to
+     *    another coupon
+     *  - search again over the two people and their friends, then out to friends of friends,
+     *    with everyone further away keeping their coupon and at most REPAIR_STEPS steps each
+     *  - search the whole graph from scratch
+     * Afterwards the distribution is pinned, so advance returns false until reset or solve.
+     * The fixed DEGREE order isn't re-sorted for the new friendship.
+     * @param a One person
+     * @param b The other person
+     * @return true if the solver holds a distribution with the new friendship, false if it
+     * didn't hold one before or there is none with this many coupons
+     * @throws IllegalArgumentException if a and b are the same person
+     */
+    public boolean addFriendship(int a, int b) {
+        if (a == b) throw new IllegalArgumentException("ERROR: Person " + (a + 1) + " can't be friends with themselves");
+        boolean solved = depth == size;
+        friends[a][b >>> 6] |= 1L << b;
+        friends[b][a >>> 6] |= 1L << a;
+        degree[a] = countFriends(a);
+        degree[b] = countFriends(b);
+        if (!solved) return false;
+        base = size;
+        if (assignment[a] != assignment[b]) return true;      // no clash, nothing to fix
+
+        int first = degree[a] <= degree[b] ? a : b;           // fewer friends, more room to move
+        int second = first == a ? b : a;
+        if (recolor(first) || recolor(second)) return true;
+        if (recolorWithFriend(first) || recolorWithFriend(second)) return true;
+
+        int[] before = assignment.clone();
+        long[] around = new long[words];
+        around[a >>> 6] |= 1L << a;
+        around[b >>> 6] |= 1L << b;
+        for (int radius = 1; radius <= 2; radius++) {
+            around = widen(around);
+            if (searchAround(before, around, REPAIR_STEPS)) return true;
+        }
+        reset();
+        if (!advance()) return false;
+        base = size;
+        return true;
+    }
+
+    /**
+     * Ends two people's friendship. A distribution the solver holds stays correct, since
+     * nobody gains a friend to clash with.
+     * @param a One person
+     * @param b The other person
+     * @return true if the solver holds a distribution, false if it didn't hold one before
+     */
+    public boolean removeFriendship(int a, int b) {
+        friends[a][b >>> 6] &= ~(1L << b);
+        friends[b][a >>> 6] &= ~(1L << a);
+        degree[a] = countFriends(a);
+        degree[b] = countFriends(b);
+        if (depth != size) return false;
+        base = size;
+        return true;
+    }
+
+    /**
+     * Most steps one search around a changed friendship may take before the repair widens
+     */
+    static final long REPAIR_STEPS = 10000;
+
+    int countFriends(int person) {
+        int count = 0;
+        for (int w = 0; w < words; w++) count += Long.bitCount(friends[person][w]);
+        return count;
+    }
+
+    /**
+     * Moves a person who holds a coupon to a different one
+     * @param person The person to move
+     * @param coupon Their new coupon
+     */
+    void move(int person, int coupon) {
+        take(person, assignment[person]);
+        give(person, coupon);
+        assignment[person] = coupon;
+    }
+
+    /**
+     * Moves a person to another coupon none of their friends hold
+     * @param person The person to move
+     * @return true if there was one, false otherwise
+     */
+    boolean recolor(int person) {
+        for (int coupon = 1; coupon <= numOfCoupons; coupon++) {
+            if (coupon != assignment[person] && !conflicts(person, coupon)) {
+                move(person, coupon);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves a person to a coupon only one of their friends holds, after moving that friend to
+     * another coupon none of their own friends hold
+     * @param person The person to move
+     * @return true if such a pair of moves was found, false otherwise
+     */
+    boolean recolorWithFriend(int person) {
+        for (int coupon = 1; coupon <= numOfCoupons; coupon++) {
+            if (coupon == assignment[person] || countConflicts(person, coupon) != 1) continue;
+            int friend = -1;
+            for (int w = 0; w < words && friend == -1; w++) {
+                long bits = friends[person][w] & holders[coupon][w];
+                if (bits != 0) friend = (w << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if (recolor(friend)) {
+                move(person, coupon);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds everyone who is friends with someone in a group
+     * @param group Bit i set if person i is in the group
+     * @return The bigger group
+     */
+    long[] widen(long[] group) {
+        long[] wider = group.clone();
+        for (int w = 0; w < words; w++) {
+            long bits = group[w];
+            while (bits != 0) {
+                int person = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                for (int v = 0; v < words; v++) wider[v] |= friends[person][v];
+            }
+        }
+        return wider;
+    }
+
+    /**
+     * Searches for new coupons for a group of people while everyone else keeps the coupon
+     * they had. The people outside the group are pinned above the search, the same way
+     * descend pins them, but without picking a next person after each one.
+     * @param start The distribution to keep outside the group
+     * @param free Bit i set if person i may get a new coupon
+     * @param budget Most steps the search may take
+     * @return true if the assignment now holds a distribution, false otherwise
+     */
+    boolean searchAround(int[] start, long[] free, long budget) {
+        reset();
+        for (int i = 0; i < size; i++) {
+            if ((free[i >>> 6] & (1L << i)) != 0) continue;
+            order[depth++] = i;
+            assignment[i] = start[i];
+            give(i, start[i]);
+        }
+        base = depth;
+        if (base > 0) highest[base] = numOfCoupons;     // the pinned coupons already fix the labels
+        if (forwardChecking) {
+            for (int i = 0; i < size; i++) {
+                if ((free[i >>> 6] & (1L << i)) == 0) continue;
+                for (int c = 1; c <= numOfCoupons; c++) {
+                    if (conflicts(i, c)) domain[i] &= ~(1L << c);
+                }
+                if (domain[i] == 0) return false;
+            }
+        }
+        if (depth < size) order[depth] = ordering.pick(this);
+        stepBudget = budget;
+        boolean found = depth == size || advance();
+        stepBudget = Long.MAX_VALUE;
+        if (found) base = size;
+        return found;
+    }
+
+    static final int SUBPROBLEMS_PER_THREAD = 4;     // enough spare work that idle threads can steal some
+    static final int SPLIT_DEPTH = 16;               // deepest a parallel search splits unless told otherwise
+
+    int subproblems;             // subproblems the last parallel search was split into
+
+    /**
+     * Finds a way to correctly distribute coupons using several threads. The search tree is
+     * split breadth first into independent subproblems until there are
+     * SUBPROBLEMS_PER_THREAD for each thread or splitting would go below splitDepth, and a
+     * fork/join pool works through them with work stealing. Splitting goes as deep as it
+     * takes, since symmetry breaking and a friendly first few people can leave a level with
+     * a single live branch. The first thread to find a solution stops the others.
+     * @param threads The number of threads to use
+     * @param splitDepth The deepest level the search may be split at
+     * @return A solution, or null if there is none
+     */
+    public int[] solveParallel(int threads, int splitDepth) {
+        reset();
+        AtomicReference<int[]> result = new AtomicReference<int[]>();
+        cancel = new AtomicBoolean(false);
+        try {
+            List<SearchTask> tasks = new ArrayList<SearchTask>();
+            for (CouponSolver part : split(SUBPROBLEMS_PER_THREAD * threads, splitDepth)) {
+                tasks.add(new SearchTask(part, result));
+            }
+            subproblems = tasks.size();
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                for (SearchTask task : tasks) pool.execute(task);
+                for (SearchTask task : tasks) task.join();
+            } finally {
+                pool.shutdown();
+            }
+        } finally {
+            cancel = null;
+        }
+        return result.get();
+    }
+
+    /**
+     * Splits the search one level at a time into copies that each give the next person one
+     * of their possible coupons. Branches that clash are dropped along the way.
+     * @param target The number of subproblems to stop at
+     * @param splitDepth The deepest level to split at
+     * @return The subproblems, empty if there is no solution
+     */
+    List<CouponSolver> split(int target, int splitDepth) {
+        List<CouponSolver> live = new ArrayList<CouponSolver>();
+        live.add(this);
+        while (live.size() < target) {
+            List<CouponSolver> next = new ArrayList<CouponSolver>();
+            boolean deeper = false;
+            for (CouponSolver part : live) {
+                if (part.depth == part.size || part.depth >= splitDepth) {
+                    next.add(part);             // solved or as deep as it may go
+                    continue;
+                }
+                deeper = true;
+                int person = part.order[part.depth];
+                for (int coupon = part.nextCoupon(part.depth, person, 0); coupon != 0;
+                        coupon = part.nextCoupon(part.depth, person, coupon)) {
+                    CouponSolver child = new CouponSolver(part);
+                    if (child.descend(coupon)) next.add(child);
+                }
+            }
+            live = next;
+            if (!deeper) break;
+        }
+        return live;
+    }
+
+    /**
+     * Searches one subproblem of a parallel search with the normal search
+     */
+    static class SearchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final CouponSolver solver;
+        final AtomicReference<int[]> result;
+
+        SearchTask(CouponSolver solver, AtomicReference<int[]> result) {
+            this.solver = solver;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            if (solver.cancel.get()) return;
+            if (solver.depth == solver.size || solver.advance()) {
+                if (result.compareAndSet(null, solver.assignment.clone())) solver.cancel.set(true);
+            }
+        }
+    }
+
+    /**
+     * Lazily walks every solution, starting over from nobody having a coupon. Each solution is
+     * found only when it is asked for, by moving the search forward from the one before, so
+     * they are never all held in memory. With symmetry breaking on this gives one solution per
+     * way of splitting people into coupon groups; turn it off to get every labeling.
+     * @return An iterator giving a copy of each solution
+     */
+    public Iterator<int[]> solutions() {
+        reset();
+        return new Iterator<int[]>() {
+            boolean ready;       // the assignment holds a solution nobody has taken yet
+            boolean done;
+
+            @Override
+            public boolean hasNext() {
+                if (!ready && !done) {
+                    ready = advance();
+                    done = !ready;
+                }
+                return ready;
+            }
+
+            @Override
+            public int[] next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                ready = false;
+                return assignment.clone();
+            }
+        };
+    }
+
+    /**
+     * Lazily streams every solution, the same way solutions() does
+     * @return A sequential stream giving a copy of each solution
+     */
+    public Stream<int[]> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(solutions(),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Counts every labeled solution without listing them. The search runs with symmetry
+     * breaking, and a solution using j of the k coupons stands for k!/(k-j)! labelings.
+     * Leaves symmetry breaking on afterwards.
+     * @return The number of ways to distribute the coupons
+     */
+    public BigInteger count() {
+        setSymmetryBreaking(true);
+        BigInteger[] labelings = new BigInteger[numOfCoupons + 1];
+        labelings[0] = BigInteger.ONE;
+        for (int j = 1; j <= numOfCoupons; j++) {
+            labelings[j] = labelings[j - 1].multiply(BigInteger.valueOf(numOfCoupons - j + 1));
+        }
+        long[] canonical = new long[numOfCoupons + 1];     // solutions using exactly j coupons
+        while (advance()) canonical[highest[size]]++;
+        BigInteger total = BigInteger.ZERO;
+        for (int j = 0; j <= numOfCoupons; j++) {
+            total = total.add(labelings[j].multiply(BigInteger.valueOf(canonical[j])));
+        }
+        return total;
+    }
+
+    /**
+     * Gets the assignment array the search works on. It changes as the search runs.
+     * @return The coupon given to each person, 0 if they don't have one yet
+     */
+    public int[] assignment() {
+        return assignment;
+    }
+}
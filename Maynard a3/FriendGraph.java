@@ -0,0 +1,368 @@
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A friendship graph stored in compressed sparse row (CSR) form: the friends of person i are
+ * neighbors[offsets[i]] up to neighbors[offsets[i+1]], sorted. This takes memory proportional to
+ * the number of friendships instead of n*n like the int[][] grid.
+ *
+ * Files are read a byte at a time from a buffered FileChannel, so no String is made per cell.
+ * Two formats are accepted:
+ *  - the space separated n by n 0/1 grid used by small.txt and large.txt
+ *  - a DIMACS edge list: "c" comment lines, one "p edge n m" line, then "e u v" lines for
+ *    each pair of friends, with people numbered from 1
+ */
+public class FriendGraph {
+
+    final int size;
+    final int[] offsets;
+    final int[] neighbors;
+
+    /**
+     * Builds a graph from a list of friendships. Duplicates are removed.
+     * @param size The number of people
+     * @param from One end of each friendship
+     * @param to The other end of each friendship
+     * @param count The number of friendships in the lists
+     */
+    FriendGraph(int size, int[] from, int[] to, int count) {
+        this.size = size;
+        int[] degree = new int[size + 1];
+        for (int e = 0; e < count; e++) {
+            degree[from[e]]++;
+            degree[to[e]]++;
+        }
+        int[] start = new int[size + 1];
+        for (int i = 0; i < size; i++) start[i + 1] = start[i] + degree[i];
+        int[] all = new int[start[size]];
+        int[] fill = Arrays.copyOf(start, size);
+        for (int e = 0; e < count; e++) {
+            all[fill[from[e]]++] = to[e];
+            all[fill[to[e]]++] = from[e];
+        }
+
+        // sort each row and squeeze out duplicate friendships
+        offsets = new int[size + 1];
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            Arrays.sort(all, start[i], start[i + 1]);
+            offsets[i] = kept;
+            for (int j = start[i]; j < start[i + 1]; j++) {
+                if (j == start[i] || all[j] != all[j - 1]) all[kept++] = all[j];
+            }
+        }
+        offsets[size] = kept;
+        neighbors = Arrays.copyOf(all, kept);
+    }
+
+    /**
+     * Gets the number of people
+     * @return The number of people
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of friends a person has
+     * @param person The person
+     * @return Their number of friends
+     */
+    public int degree(int person) {
+        return offsets[person + 1] - offsets[person];
+    }
+
+    /**
+     * Checks if two people are friends
+     * @param a One person
+     * @param b The other person
+     * @return true if they are friends, false otherwise
+     */
+    public boolean areFriends(int a, int b) {
+        return Arrays.binarySearch(neighbors, offsets[a], offsets[a + 1], b) >= 0;
+    }
+
+    /**
+     * Labels every person with the connected component they belong to, so people in different
+     * components have no chain of friendships between them
+     * @param component Filled with each person's component, numbered from 0
+     * @return The number of components
+     */
+    public int components(int[] component) {
+        Arrays.fill(component, 0, size, -1);
+        int[] queue = new int[size];
+        int count = 0;
+        for (int start = 0; start < size; start++) {
+            if (component[start] != -1) continue;
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = start;
+            component[start] = count;
+            while (head < tail) {                                  // breadth first search
+                int person = queue[head++];
+                for (int j = offsets[person]; j < offsets[person + 1]; j++) {
+                    int friend = neighbors[j];
+                    if (component[friend] == -1) {
+                        component[friend] = count;
+                        queue[tail++] = friend;
+                    }
+                }
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Builds the graph of friendships among some of the people
+     * @param people The people to keep, sorted; person people[i] becomes person i
+     * @param local Scratch space of size() ints, used to renumber people
+     * @return The smaller graph
+     */
+    public FriendGraph subgraph(int[] people, int[] local) {
+        Arrays.fill(local, -1);
+        for (int i = 0; i < people.length; i++) local[people[i]] = i;
+        EdgeList edges = new EdgeList();
+        for (int i = 0; i < people.length; i++) {
+            int person = people[i];
+            for (int j = offsets[person]; j < offsets[person + 1]; j++) {
+                int friend = local[neighbors[j]];
+                if (friend > i) edges.add(i, friend);
+            }
+        }
+        return new FriendGraph(people.length, edges.from, edges.to, edges.count);
+    }
+
+    /**
+     * Builds a graph from a friendship grid. A pair counts as friends if either of their cells is 1.
+     * @param friendship The friendship grid
+     * @return The graph
+     */
+    public static FriendGraph fromMatrix(int[][] friendship) {
+        EdgeList edges = new EdgeList();
+        for (int i = 0; i < friendship.length; i++) {
+            for (int j = 0; j < friendship.length; j++) {
+                if (friendship[i][j] == 1 && i != j) edges.add(Math.min(i, j), Math.max(i, j));
+            }
+        }
+        return new FriendGraph(friendship.length, edges.from, edges.to, edges.count);
+    }
+
+    /**
+     * Builds the friendship grid for this graph, for the reference solver
+     * @return The n by n grid, 1 if two people are friends
+     */
+    public int[][] toMatrix() {
+        int[][] friendship = new int[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = offsets[i]; j < offsets[i + 1]; j++) friendship[i][neighbors[j]] = 1;
+        }
+        return friendship;
+    }
+
+    /**
+     * Reads a friendship grid or DIMACS edge list file
+     * @param filename The name of the file
+     * @return The graph
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file can't be read or isn't in either format
+     */
+    public static FriendGraph read(String filename) throws IOException {
+        FileChannel channel = new FileInputStream(filename).getChannel();
+        try {
+            Tokenizer in = new Tokenizer(channel);
+            int first = in.skipSpace();
+            if (first == 'c' || first == 'p') return readEdgeList(in);
+            return readGrid(in);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the rest of a space separated 0/1 grid. The first row gives the number of people.
+     */
+    static FriendGraph readGrid(Tokenizer in) throws IOException {
+        EdgeList edges = new EdgeList();
+        int row = 0;
+        int size = -1;
+        while (in.skipSpace() != -1) {
+            int col = 0;
+            while (true) {
+                int cell = in.nextInt();
+                if (cell == 1) {
+                    if (row == col) throw new IOException("ERROR: Person " + (row + 1) + " is friends with themselves");
+                    edges.add(Math.min(row, col), Math.max(row, col));
+                } else if (cell != 0) {
+                    throw new IOException("Grid cells must be 0 or 1, row " + (row + 1));
+                }
+                col++;
+                if (in.skipBlanks() == '\n' || in.peek() == -1) break;
+            }
+            if (size == -1) size = col;
+            if (col != size) throw new IOException("Row " + (row + 1) + " has " + col + " cells, expected " + size);
+            row++;
+        }
+        if (size == -1) size = 0;
+        if (row != size) throw new IOException("Grid has " + row + " rows, expected " + size);
+        return new FriendGraph(size, edges.from, edges.to, edges.count);
+    }
+
+    /**
+     * Reads the rest of a DIMACS edge list
+     */
+    static FriendGraph readEdgeList(Tokenizer in) throws IOException {
+        EdgeList edges = new EdgeList();
+        int size = -1;
+        int c;
+        while ((c = in.skipSpace()) != -1) {
+            in.next();
+            if (c == 'c') {
+                in.skipLine();
+            } else if (c == 'p') {
+                in.skipWord();                     // the problem name, "edge" or "col"
+                size = in.nextInt();
+                edges.reserve(in.nextInt());
+                in.skipLine();
+            } else if (c == 'e') {
+                if (size == -1) throw new IOException("Edge before the \"p edge n m\" line");
+                int a = in.nextInt() - 1;
+                int b = in.nextInt() - 1;
+                if (a < 0 || b < 0 || a >= size || b >= size) {
+                    throw new IOException("Edge " + (a + 1) + " " + (b + 1) + " is outside 1.." + size);
+                }
+                if (a == b) throw new IOException("ERROR: Person " + (a + 1) + " is friends with themselves");
+                edges.add(a, b);
+                in.skipLine();
+            } else {
+                throw new IOException("Unknown line starting with '" + (char) c + "'");
+            }
+        }
+        if (size == -1) throw new IOException("Missing \"p edge n m\" line");
+        return new FriendGraph(size, edges.from, edges.to, edges.count);
+    }
+
+    /**
+     * A growable pair of int arrays holding friendships while a file is read
+     */
+    static class EdgeList {
+        int[] from = new int[64];
+        int[] to = new int[64];
+        int count;
+
+        void reserve(int edges) {
+            if (edges > from.length) {
+                from = Arrays.copyOf(from, edges);
+                to = Arrays.copyOf(to, edges);
+            }
+        }
+
+        void add(int a, int b) {
+            if (count == from.length) reserve(count * 2);
+            from[count] = a;
+            to[count] = b;
+            count++;
+        }
+    }
+
+    /**
+     * Reads numbers and words straight out of a file's bytes
+     */
+    static class Tokenizer {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+
+        Tokenizer(FileChannel channel) {
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        /**
+         * Looks at the next byte without using it up
+         * @return The byte, or -1 at the end of the file
+         */
+        int peek() throws IOException {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                int read;
+                do {
+                    read = channel.read(buffer);
+                } while (read == 0);
+                buffer.flip();
+                if (read == -1) return -1;
+            }
+            return buffer.get(buffer.position());
+        }
+
+        /**
+         * Uses up the next byte
+         * @return The byte, or -1 at the end of the file
+         */
+        int next() throws IOException {
+            int c = peek();
+            if (c != -1) buffer.position(buffer.position() + 1);
+            return c;
+        }
+
+        /**
+         * Skips spaces, tabs and line breaks
+         * @return The next byte after them, or -1 at the end of the file
+         */
+        int skipSpace() throws IOException {
+            int c = peek();
+            while (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                next();
+                c = peek();
+            }
+            return c;
+        }
+
+        /**
+         * Skips spaces, tabs and carriage returns but not line breaks
+         * @return The next byte after them, or -1 at the end of the file
+         */
+        int skipBlanks() throws IOException {
+            int c = peek();
+            while (c == ' ' || c == '\t' || c == '\r') {
+                next();
+                c = peek();
+            }
+            return c;
+        }
+
+        void skipLine() throws IOException {
+            int c = next();
+            while (c != '\n' && c != -1) c = next();
+        }
+
+        void skipWord() throws IOException {
+            skipBlanks();
+            int c = peek();
+            while (c != ' ' && c != '\t' && c != '\r' && c != '\n' && c != -1) {
+                next();
+                c = peek();
+            }
+        }
+
+        /**
+         * Reads a non-negative whole number
+         * @return The number
+         * @throws IOException if the next thing in the file isn't a number
+         */
+        int nextInt() throws IOException {
+            int c = skipBlanks();
+            if (c < '0' || c > '9') throw new IOException("Expected a number");
+            int value = 0;
+            while (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                next();
+                c = peek();
+            }
+            return value;
+        }
+    }
+}
@@ -4,6 +4,9 @@
 
 import java.util.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import com.sun.management.ThreadMXBean;
 
 public class FriendsCoupon {
 
@@ -229,6 +232,205 @@ public class FriendsCoupon {
     }
 
 
+    /**
+     * Tests the bitset reject against reject using a partial solution.
+     * @param solver The bitset solver for the current grid
+     * @param test The partial solution to test
+     */
+    static void testBitsetRejectUnit(CouponSolver solver, int[] test) {
+        boolean expected = reject(test);
+        boolean actual = solver.reject(test);
+        System.err.println((expected == actual ? "Agrees:\t\t" : "DISAGREES:\t") + Arrays.toString(test)
+                + " reject=" + expected + " bitset=" + actual);
+    }
+
+    /**
+     * Tests that the bitset solver agrees with reject and isFullSolution.
+     */
+    public static void testBitsetSolver() {
+        System.err.println("Testing CouponSolver");
+        CouponSolver solver = new CouponSolver(friendship, 6);
+
+        testBitsetRejectUnit(solver, new int[] {0, 1, 2, 3, 4, 5});
+        testBitsetRejectUnit(solver, new int[] {1, 2, 1, 1, 2, 3});
+        testBitsetRejectUnit(solver, new int[] {1, 2, 1, 0, 0, 0});
+        testBitsetRejectUnit(solver, new int[] {1, 1, 1, 1, 1, 1});
+        testBitsetRejectUnit(solver, new int[] {1, 1, 3, 2, 2, 1});
+
+        for (CouponSolver.Ordering ordering : CouponSolver.Ordering.values()) {
+            for (int k = 1; k <= 3; k++) {
+                for (boolean fc : new boolean[] {false, true}) {
+                    CouponSolver kSolver = new CouponSolver(friendship, k);
+                    kSolver.setOrdering(ordering);
+                    kSolver.setForwardChecking(fc);
+                    int[] sol = kSolver.solve();
+                    System.err.println("Solved with " + k + " coupons in " + ordering + " order"
+                            + (fc ? " with forward checking: " : ": ")
+                            + Arrays.toString(sol) + (sol == null || isFullSolution(sol) ? "" : " INVALID"));
+                }
+            }
+        }
+        testSymmetryBreaking();
+        testParallel();
+        testCounting();
+        testIncremental();
+        testAllocations();
+    }
+
+    /**
+     * Tests symmetry breaking by counting the solutions of the test grid both ways. A solution
+     * found with symmetry breaking that uses j of the k coupons stands for k!/(k-j)! solutions
+     * found without it, so the two counts should match.
+     */
+    public static void testSymmetryBreaking() {
+        System.err.println("Testing symmetry breaking");
+        for (int k = 3; k <= 5; k++) {
+            CouponSolver solver = new CouponSolver(friendship, k);
+            solver.setSymmetryBreaking(false);
+            long all = 0;
+            while (solver.advance()) all++;
+
+            solver.setSymmetryBreaking(true);
+            long canonical = 0;
+            long expanded = 0;
+            while (solver.advance()) {
+                canonical++;
+                int used = 0;
+                for (int coupon : solver.assignment()) used = Math.max(used, coupon);
+                long relabelings = 1;
+                for (int j = 0; j < used; j++) relabelings *= k - j;
+                expanded += relabelings;
+            }
+            System.err.println((all == expanded ? "Agrees:\t\t" : "DISAGREES:\t") + k + " coupons, "
+                    + all + " solutions, " + canonical + " up to relabeling");
+        }
+    }
+
+    /**
+     * Tests that the parallel search finds a valid solution whenever the sequential one does.
+     */
+    public static void testParallel() {
+        System.err.println("Testing parallel search");
+        for (int k = 1; k <= 4; k++) {
+            CouponSolver solver = new CouponSolver(friendship, k);
+            solver.setForwardChecking(true);
+            int[] sequential = solver.solve();
+            int[] parallel = solver.solveParallel(4, 2);
+            boolean agrees = (sequential == null) == (parallel == null)
+                    && (parallel == null || isFullSolution(parallel));
+            System.err.println((agrees ? "Agrees:\t\t" : "DISAGREES:\t") + k + " coupons, sequential "
+                    + Arrays.toString(sequential) + ", parallel " + Arrays.toString(parallel));
+        }
+        CouponSolver solver = new CouponSolver(friendship, 3);
+        solver.setOrdering(CouponSolver.Ordering.DSATUR);
+        solver.solveParallel(4, CouponSolver.SPLIT_DEPTH);
+        System.err.println((solver.subproblems > 1 ? "Agrees:\t\t" : "DISAGREES:\t") + "3 coupons with dsatur split into "
+                + solver.subproblems + " subproblems for 4 threads");
+    }
+
+    /**
+     * Tests that counting solutions without listing them gives the same number as streaming
+     * every solution and counting those.
+     */
+    public static void testCounting() {
+        System.err.println("Testing solution counting");
+        for (int k = 2; k <= 5; k++) {
+            CouponSolver solver = new CouponSolver(friendship, k);
+            solver.setSymmetryBreaking(false);
+            long streamed = solver.stream().filter(FriendsCoupon::isFullSolution).count();
+            BigInteger counted = solver.count();
+            System.err.println((counted.longValue() == streamed ? "Agrees:\t\t" : "DISAGREES:\t") + k
+                    + " coupons, streamed " + streamed + ", counted " + counted);
+        }
+        CouponSolver empty = new CouponSolver(new int[0][0], 3);
+        long streamed = empty.stream().limit(2).count();      // limited, so giving the empty solution forever shows up
+        BigInteger counted = empty.count();
+        System.err.println((streamed == 1 && counted.longValue() == 1 ? "Agrees:\t\t" : "DISAGREES:\t")
+                + "nobody, streamed " + streamed + ", counted " + counted);
+
+        // two three-person chains numbered differently, and someone with no friends
+        int[][] chains = new int[7][7];
+        int[][] pairs = {{0, 1}, {0, 2}, {3, 5}, {4, 5}};
+        for (int[] pair : pairs) {
+            chains[pair[0]][pair[1]] = 1;
+            chains[pair[1]][pair[0]] = 1;
+        }
+        ComponentSolver parts = new ComponentSolver(FriendGraph.fromMatrix(chains));
+        counted = parts.count(3, true);
+        System.err.println((counted.longValue() == 12 * 12 * 3 && parts.shapesCounted == 1 ? "Agrees:\t\t" : "DISAGREES:\t")
+                + "two chains and a loner with 3 coupons, counted " + counted + ", chain shapes searched " + parts.shapesCounted);
+    }
+
+    /**
+     * Tests repairing a distribution as friendships come and go. After every change the
+     * repaired distribution must be valid for the changed grid, and it must be found exactly
+     * when solving the changed grid from scratch finds one.
+     */
+    public static void testIncremental() {
+        System.err.println("Testing incremental repair");
+        int[][] original = friendship;
+        Random random = new Random(13);
+        for (int k = 3; k <= 4; k++) {
+            friendship = new int[original.length][];
+            for (int i = 0; i < original.length; i++) friendship[i] = original[i].clone();
+            CouponSolver solver = new CouponSolver(friendship, k);
+            solver.setOrdering(CouponSolver.Ordering.DSATUR);
+            solver.setForwardChecking(true);
+            boolean held = solver.solve() != null;
+            int agreed = 0;
+            int changes = 200;
+            for (int change = 0; change < changes; change++) {
+                int a = random.nextInt(friendship.length);
+                int b = random.nextInt(friendship.length - 1);
+                if (b >= a) b++;
+                boolean adding = friendship[a][b] == 0;
+                friendship[a][b] = adding ? 1 : 0;
+                friendship[b][a] = adding ? 1 : 0;
+                if (held) {
+                    held = adding ? solver.addFriendship(a, b) : solver.removeFriendship(a, b);
+                } else {
+                    if (adding) solver.addFriendship(a, b); else solver.removeFriendship(a, b);
+                    held = solver.solve() != null;
+                }
+                boolean expected = new CouponSolver(friendship, k).solve() != null;
+                if (held == expected && (!held || isFullSolution(solver.assignment()))) agreed++;
+            }
+            System.err.println((agreed == changes ? "Agrees:\t\t" : "DISAGREES:\t") + k + " coupons, "
+                    + agreed + " of " + changes + " changes");
+        }
+        friendship = original;
+    }
+
+    /**
+     * Counts the bytes allocated while the bitset solver walks every solution of the test grid.
+     * The search works in place, so this should stay at 0 per step.
+     */
+    public static void testAllocations() {
+        System.err.println("Testing CouponSolver allocations");
+        CouponSolver solver = new CouponSolver(friendship, 6);
+        solver.setForwardChecking(true);
+        solver.setSymmetryBreaking(false);         // walk every labeling for a longer run
+        ThreadMXBean bean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // warm up so class loading and compilation aren't counted
+        for (int round = 0; round < 20; round++) {
+            solver.reset();
+            while (solver.advance());
+        }
+
+        solver.reset();
+        solver.steps = 0;
+        int solutions = 0;
+        long before = bean.getThreadAllocatedBytes(threadId);
+        while (solver.advance()) solutions++;
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+        System.err.println("Solutions: " + solutions + ", steps: " + solver.steps
+                + ", bytes allocated: " + allocated
+                + ", bytes per step: " + ((double) allocated / solver.steps));
+    }
+
+
 
 
     /**
@@ -252,18 +454,30 @@ public class FriendsCoupon {
     /**
      * Finds a way to correctly distribute coupons and prints a solution
      * @param partial The partial solution
+     * @return true if a solution was found and printed, false otherwise
      */
-    public static void solve(int[] partial) {
-        if (reject(partial)) return;
-        if (isFullSolution(partial)){
-            printSolution(partial);
-            System.exit(0);
-        }
+    public static boolean solve(int[] partial) {
+        int[] sol = findSolution(partial);
+        if (sol == null) return false;
+        printSolution(sol);
+        return true;
+    }
+
+    /**
+     * Finds a way to correctly distribute coupons without printing anything
+     * @param partial The partial solution
+     * @return A complete and valid solution, or null if there is none
+     */
+    public static int[] findSolution(int[] partial) {
+        if (reject(partial)) return null;
+        if (isFullSolution(partial)) return partial;
         int[] attempt = extend(partial);
         while (attempt != null) {
-            solve(attempt);
+            int[] sol = findSolution(attempt);
+            if (sol != null) return sol;
             attempt = next(attempt);
         }
+        return null;
     }
 
 
@@ -278,13 +492,179 @@ public class FriendsCoupon {
             testIsFullSolution();
             testExtend();
             testNext();
+            testBitsetSolver();
         } else {
-            readGrid(args[0]);
-            numOfCoupons = Integer.parseInt(args[1]);
+            FriendGraph graph;
+            try {
+                graph = FriendGraph.read(args[0]);
+            } catch (FileNotFoundException e) {
+                System.out.println("File not found");
+                return;
+            } catch (IOException e) {
+                System.out.print(e.getMessage());
+                return;
+            }
+            boolean minimize = false;
+            boolean components = false;
+            boolean listAll = false;
+            boolean count = false;
+            SolverStats stats = null;
+            boolean fast = false;
+            CouponSolver.Ordering ordering = CouponSolver.Ordering.INDEX;
+            boolean forwardChecking = false;
+            boolean symmetryBreaking = true;
+            int threads = 1;
+            int splitDepth = CouponSolver.SPLIT_DEPTH;
+            int arg = 1;
+            if (arg < args.length && !args[arg].startsWith("-")) numOfCoupons = Integer.parseInt(args[arg++]);
+            for (; arg < args.length; arg++) {
+                if (args[arg].equals("-fast")) {
+                    fast = true;
+                } else if (args[arg].equals("-order") && arg + 1 < args.length) {
+                    // index, degree or dsatur; only the bitset solver can reorder people
+                    ordering = CouponSolver.Ordering.valueOf(args[++arg].toUpperCase());
+                    fast = true;
+                } else if (args[arg].equals("-fc")) {
+                    // prune with per-person remaining-coupon domains
+                    forwardChecking = true;
+                    fast = true;
+                } else if (args[arg].equals("-nosym")) {
+                    // try every coupon label for every person, for debugging
+                    symmetryBreaking = false;
+                    fast = true;
+                } else if (args[arg].equals("-threads") && arg + 1 < args.length) {
+                    // search split subproblems on a fork/join pool
+                    threads = Integer.parseInt(args[++arg]);
+                    if (threads < 1) {
+                        System.out.println("The number of threads must be at least 1");
+                        return;
+                    }
+                    fast = true;
+                } else if (args[arg].equals("-components")) {
+                    // solve each group of connected people on its own
+                    components = true;
+                    fast = true;
+                } else if (args[arg].equals("-stats")) {
+                    // print a progress line every second and a summary at the end on stderr
+                    stats = new SolverStats(1000, System.err);
+                    fast = true;
+                } else if (args[arg].equals("-all")) {
+                    // print every distribution instead of stopping at the first
+                    listAll = true;
+                    fast = true;
+                } else if (args[arg].equals("-count")) {
+                    // count the distributions without printing them
+                    count = true;
+                    fast = true;
+                } else if (args[arg].equals("-min")) {
+                    // find the smallest number of coupons instead of taking it as an argument
+                    minimize = true;
+                } else if (args[arg].equals("-split") && arg + 1 < args.length) {
+                    // the deepest level a parallel search may be split at
+                    splitDepth = Integer.parseInt(args[++arg]);
+                } else {
+                    System.out.println("Unknown option " + args[arg]);
+                    return;
+                }
+            }
+
+            if (forwardChecking && numOfCoupons > 63) {
+                // the domains are 64-bit masks, so search the way count does without them
+                System.err.println("Forward checking supports at most 63 coupons, searching without it");
+                forwardChecking = false;
+            }
+
+            if ((listAll || count) && numOfCoupons == 0) {
+                System.out.println("Enter the number of coupons to list or count distributions for");
+                return;
+            } else if (count) {
+                ComponentSolver parts = new ComponentSolver(graph);
+                parts.setStats(stats);
+                System.out.println("Number of distributions: " + parts.count(numOfCoupons, forwardChecking));
+                if (stats != null) stats.summary();
+                return;
+            } else if (listAll) {
+                CouponSolver solver = new CouponSolver(graph, numOfCoupons);
+                solver.setOrdering(ordering);
+                solver.setForwardChecking(forwardChecking);
+                solver.setSymmetryBreaking(false);         // every labeling is a different distribution
+                solver.setStats(stats);
+                Iterator<int[]> sols = solver.solutions();
+                long found = 0;
+                while (sols.hasNext()) {
+                    System.out.println("Distribution " + (++found) + ":");
+                    printSolution(sols.next());
+                }
+                System.out.println(found + " distributions found");
+                if (stats != null) stats.summary();
+                return;
+            }
+
+            if (components) {
+                ComponentSolver parts = new ComponentSolver(graph);
+                parts.setStats(stats);
+                System.err.println("Connected components: " + parts.count());
+                int[] sol;
+                if (minimize) {
+                    sol = parts.minimize(forwardChecking, threads);
+                    System.out.println("Minimum number of coupons: " + CouponSolver.highestCoupon(sol));
+                } else if (numOfCoupons == 0) {
+                    System.out.println("Enter the number of coupons, or -min to find the smallest number");
+                    return;
+                } else {
+                    final int k = numOfCoupons;
+                    final CouponSolver.Ordering order = ordering;
+                    final boolean fc = forwardChecking;
+                    final boolean sym = symmetryBreaking;
+                    final SolverStats counters = stats;
+                    sol = parts.solve(part -> {
+                        CouponSolver solver = new CouponSolver(part, k);
+                        solver.setOrdering(order);
+                        solver.setForwardChecking(fc);
+                        solver.setSymmetryBreaking(sym);
+                        solver.setStats(counters);
+                        return solver;
+                    }, threads);
+                }
+                if (stats != null) stats.summary();
+                if (sol != null) {
+                    printSolution(sol);
+                } else {
+                    System.out.print("No solution found");
+                }
+                return;
+            }
 
-            int[] start = new int[friendship.length];
-            for (int i = 0; i < friendship.length; i++) start[i] = 0;
-            solve(start);
+            if (minimize) {
+                int[] sol = CouponSolver.minimumCoupons(graph, forwardChecking, stats);
+                if (stats != null) stats.summary();
+                System.out.println("Minimum number of coupons: " + CouponSolver.highestCoupon(sol));
+                printSolution(sol);
+                return;
+            } else if (numOfCoupons == 0) {
+                System.out.println("Enter the number of coupons, or -min to find the smallest number");
+                return;
+            }
+
+            if (fast) {
+                // use the bitset solver instead of rescanning the grid with reject
+                CouponSolver solver = new CouponSolver(graph, numOfCoupons);
+                solver.setOrdering(ordering);
+                solver.setForwardChecking(forwardChecking);
+                solver.setSymmetryBreaking(symmetryBreaking);
+                solver.setStats(stats);
+                int[] sol = threads > 1 ? solver.solveParallel(threads, splitDepth) : solver.solve();
+                if (stats != null) stats.summary();
+                if (sol != null) {
+                    printSolution(sol);
+                    return;
+                }
+            } else {
+                friendship = graph.toMatrix();
+                int[] start = new int[friendship.length];
+                for (int i = 0; i < friendship.length; i++) start[i] = 0;
+                if (solve(start)) return;
+            }
             System.out.print("No solution found");
         }
 
@@ -292,7 +672,8 @@ public class FriendsCoupon {
 
     /**
      * Reads in a text file containing a grid and produces a
-     * two-dimensional array representing friend relationships
+     * two-dimensional array representing friend relationships.
+     * FriendGraph.read parses grids and edge lists much faster for big files.
      * @param filename The name of the file containing a grid
      */
     public static void readGrid(String filename){
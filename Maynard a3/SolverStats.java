@@ -0,0 +1,78 @@
+import java.io.PrintStream;
+
+/**
+ * Counts what the coupon search does, so orderings and pruning options can be compared on the
+ * same input. Solvers add their counters here every so often; while a search runs a progress
+ * line is printed at most once per interval, and summary() prints the totals at the end.
+ * Several solvers, such as the tasks of a parallel search, can share one SolverStats.
+ */
+public class SolverStats {
+
+    long nodes;                  // coupons handed out or people run out of coupons
+    long rejects;                // coupons ruled out because of a friend
+    long backtracks;             // times the search backed up to the person before
+    int maxDepth;                // most people holding a coupon at once
+
+    final long startNanos;
+    final long intervalNanos;
+    long lastReport;
+    final PrintStream out;
+
+    /**
+     * Starts counting
+     * @param intervalMillis How often to print a progress line, or 0 for never
+     * @param out Where to print progress and the summary
+     */
+    public SolverStats(long intervalMillis, PrintStream out) {
+        this.startNanos = System.nanoTime();
+        this.intervalNanos = intervalMillis * 1000000L;
+        this.lastReport = startNanos;
+        this.out = out;
+    }
+
+    /**
+     * Moves a solver's counters into the totals and zeroes them
+     * @param solver The solver to collect from
+     */
+    synchronized void add(CouponSolver solver) {
+        nodes += solver.steps;
+        rejects += solver.rejects;
+        backtracks += solver.backtracks;
+        maxDepth = Math.max(maxDepth, solver.maxDepth);
+        solver.steps = 0;
+        solver.rejects = 0;
+        solver.backtracks = 0;
+    }
+
+    /**
+     * Collects a solver's counters and prints a progress line if the interval has passed
+     * @param solver The solver to collect from
+     */
+    synchronized void tick(CouponSolver solver) {
+        add(solver);
+        long now = System.nanoTime();
+        if (intervalNanos > 0 && now - lastReport >= intervalNanos) {
+            lastReport = now;
+            out.println("[" + seconds(now) + "s] " + counters(now));
+        }
+    }
+
+    /**
+     * Prints the totals and the wall time since counting started
+     */
+    public synchronized void summary() {
+        long now = System.nanoTime();
+        out.println("Search finished in " + seconds(now) + "s: " + counters(now));
+    }
+
+    String counters(long now) {
+        double elapsed = (now - startNanos) / 1e9;
+        long rate = elapsed > 0 ? (long) (nodes / elapsed) : 0;
+        return "nodes " + nodes + ", rejects " + rejects + ", backtracks " + backtracks
+                + ", max depth " + maxDepth + ", nodes/sec " + rate;
+    }
+
+    String seconds(long now) {
+        return String.format("%.3f", (now - startNanos) / 1e9);
+    }
+}
@@ -0,0 +1,250 @@
+package couponbench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for the coupon solvers, over the bundled grids and some generated graphs, so
+ * changes to reject/extend/next and the bitset solver can be compared with numbers.
+ *
+ * Each problem is written "graph:coupons". The graph is a file in the "Maynard a3" directory,
+ * or "random-n-p" for n people where each pair is friends with probability p (seeded, so every
+ * run sees the same graph). The coupon counts sit on both sides of each graph's minimum, so
+ * both finding a distribution and proving there is none are measured. Problems near the
+ * minimum of the bigger graphs only run with DSatur and forward checking, since the index
+ * order search takes minutes on them.
+ *
+ * JMH won't generate benchmarks in the default package, which is where the solver classes
+ * live, so this class has its own package and reaches them through method handles that are
+ * looked up once when the class loads.
+ *
+ * To build and run from the "Maynard a3" directory, with the JMH jars (jmh-core,
+ * jmh-generator-annprocess, jopt-simple, commons-math3) in $JMH:
+ *     javac -cp "$JMH/*" -d out *.java couponbench/FriendsCouponBenchmark.java
+ *     java -cp "out:$JMH/*" couponbench.FriendsCouponBenchmark
+ * main runs everything with the gc profiler, so each result has the allocation rate next to
+ * the throughput; gc.alloc.rate.norm is the bytes allocated per solve.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FriendsCouponBenchmark {
+
+    static final MethodHandle READ;            // FriendGraph.read(String)
+    static final MethodHandle FROM_MATRIX;     // FriendGraph.fromMatrix(int[][])
+    static final MethodHandle TO_MATRIX;       // graph.toMatrix()
+    static final MethodHandle NEW_SOLVER;      // new CouponSolver(graph, coupons)
+    static final MethodHandle SET_ORDERING;    // solver.setOrdering(ordering)
+    static final MethodHandle SET_FC;          // solver.setForwardChecking(on)
+    static final MethodHandle SOLVE;           // solver.solve()
+    static final MethodHandle FIND_SOLUTION;   // FriendsCoupon.findSolution(partial)
+    static final MethodHandle SET_GRID;        // FriendsCoupon.friendship = grid
+    static final MethodHandle SET_COUPONS;     // FriendsCoupon.numOfCoupons = coupons
+    static final Object DSATUR;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> graph = Class.forName("FriendGraph");
+            Class<?> solver = Class.forName("CouponSolver");
+            Class<?> ordering = Class.forName("CouponSolver$Ordering");
+            Class<?> coupon = Class.forName("FriendsCoupon");
+
+            READ = lookup.findStatic(graph, "read", MethodType.methodType(graph, String.class))
+                    .asType(MethodType.methodType(Object.class, String.class));
+            FROM_MATRIX = lookup.findStatic(graph, "fromMatrix", MethodType.methodType(graph, int[][].class))
+                    .asType(MethodType.methodType(Object.class, int[][].class));
+            TO_MATRIX = lookup.findVirtual(graph, "toMatrix", MethodType.methodType(int[][].class))
+                    .asType(MethodType.methodType(int[][].class, Object.class));
+            NEW_SOLVER = lookup.findConstructor(solver, MethodType.methodType(void.class, graph, int.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, int.class));
+            SET_ORDERING = lookup.findVirtual(solver, "setOrdering", MethodType.methodType(void.class, ordering))
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class));
+            SET_FC = lookup.findVirtual(solver, "setForwardChecking", MethodType.methodType(void.class, boolean.class))
+                    .asType(MethodType.methodType(void.class, Object.class, boolean.class));
+            SOLVE = lookup.findVirtual(solver, "solve", MethodType.methodType(int[].class))
+                    .asType(MethodType.methodType(int[].class, Object.class));
+            FIND_SOLUTION = lookup.findStatic(coupon, "findSolution", MethodType.methodType(int[].class, int[].class));
+
+            // the reference solver reads its grid from package-private static fields
+            Field grid = coupon.getDeclaredField("friendship");
+            grid.setAccessible(true);
+            SET_GRID = MethodHandles.lookup().unreflectSetter(grid);
+            Field coupons = coupon.getDeclaredField("numOfCoupons");
+            coupons.setAccessible(true);
+            SET_COUPONS = MethodHandles.lookup().unreflectSetter(coupons);
+
+            DSATUR = ordering.getField("DSATUR").get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Loads a problem written "graph:coupons"
+     * @param problem The problem
+     * @return The FriendGraph
+     */
+    static Object loadGraph(String problem) throws Throwable {
+        String name = problem.substring(0, problem.indexOf(':'));
+        if (!name.startsWith("random-")) return (Object) READ.invokeExact(name);
+        String[] parts = name.split("-");
+        int size = Integer.parseInt(parts[1]);
+        double chance = Double.parseDouble(parts[2]);
+        return (Object) FROM_MATRIX.invokeExact(randomGrid(size, chance, name.hashCode()));
+    }
+
+    static int loadCoupons(String problem) {
+        return Integer.parseInt(problem.substring(problem.indexOf(':') + 1));
+    }
+
+    /**
+     * Makes a random friendship grid
+     * @param size The number of people
+     * @param chance The chance each pair is friends
+     * @param seed The random seed
+     * @return The grid
+     */
+    static int[][] randomGrid(int size, double chance, long seed) {
+        Random random = new Random(seed);
+        int[][] grid = new int[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = i + 1; j < size; j++) {
+                if (random.nextDouble() < chance) {
+                    grid[i][j] = 1;
+                    grid[j][i] = 1;
+                }
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * A problem both bitset solvers can finish, from the bundled grids up to generated graphs
+     */
+    @State(Scope.Benchmark)
+    public static class Problem {
+        @Param({"small.txt:2", "medium.txt:3", "medium.txt:4", "medium-large.txt:6", "medium-large.txt:7",
+                "large.txt:8", "large.txt:10", "random-60-0.3:7", "random-60-0.5:12"})
+        public String problem;
+
+        Object indexSolver;      // index order, no forward checking
+        Object dsaturSolver;     // DSatur order with forward checking
+
+        @Setup(Level.Trial)
+        public void setup() throws Throwable {
+            Object graph = loadGraph(problem);
+            int coupons = loadCoupons(problem);
+            indexSolver = (Object) NEW_SOLVER.invokeExact(graph, coupons);
+            dsaturSolver = newDsaturSolver(graph, coupons);
+        }
+    }
+
+    /**
+     * A problem at or just below the minimum number of coupons, which the index order solver
+     * can't finish in reasonable time
+     */
+    @State(Scope.Benchmark)
+    public static class HardProblem {
+        @Param({"large.txt:9", "random-60-0.3:6", "random-60-0.5:9", "random-60-0.5:10",
+                "random-100-0.1:4", "random-100-0.1:5"})
+        public String problem;
+
+        Object dsaturSolver;
+
+        @Setup(Level.Trial)
+        public void setup() throws Throwable {
+            dsaturSolver = newDsaturSolver(loadGraph(problem), loadCoupons(problem));
+        }
+    }
+
+    static Object newDsaturSolver(Object graph, int coupons) throws Throwable {
+        Object solver = (Object) NEW_SOLVER.invokeExact(graph, coupons);
+        SET_ORDERING.invokeExact(solver, DSATUR);
+        SET_FC.invokeExact(solver, true);
+        return solver;
+    }
+
+    /**
+     * A problem small enough for the reference reject/extend/next solver
+     */
+    @State(Scope.Benchmark)
+    public static class SmallProblem {
+        @Param({"small.txt:2", "medium.txt:3", "medium.txt:4", "random-20-0.3:3", "random-20-0.3:4"})
+        public String problem;
+
+        int size;
+
+        @Setup(Level.Trial)
+        public void setup() throws Throwable {
+            int[][] grid = (int[][]) TO_MATRIX.invokeExact(loadGraph(problem));
+            size = grid.length;
+            SET_GRID.invoke(grid);
+            SET_COUPONS.invoke(loadCoupons(problem));
+        }
+    }
+
+    /**
+     * FriendsCoupon.solve without printing: reject, extend and next on fresh arrays
+     */
+    @Benchmark
+    public int[] reference(SmallProblem p) throws Throwable {
+        return (int[]) FIND_SOLUTION.invokeExact(new int[p.size]);
+    }
+
+    /**
+     * The bitset solver in index order, the same search order as reference
+     */
+    @Benchmark
+    public int[] bitset(Problem p) throws Throwable {
+        return (int[]) SOLVE.invokeExact(p.indexSolver);
+    }
+
+    /**
+     * The bitset solver in DSatur order with forward checking
+     */
+    @Benchmark
+    public int[] dsaturForwardChecking(Problem p) throws Throwable {
+        return (int[]) SOLVE.invokeExact(p.dsaturSolver);
+    }
+
+    /**
+     * The bitset solver in DSatur order with forward checking, on the hard problems
+     */
+    @Benchmark
+    public int[] dsaturForwardCheckingHard(HardProblem p) throws Throwable {
+        return (int[]) SOLVE.invokeExact(p.dsaturSolver);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(FriendsCouponBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}